@@ -0,0 +1,94 @@
+package jwebkit.sql;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for inserting rows into a table, one at a time and in JDBC
+ * batches. Both are reported per row inserted. Each iteration inserts a fixed
+ * number of rows into a fresh database, and is timed as a single shot. This
+ * bounds the size of the table, since otherwise it would grow throughout a
+ * timed iteration, and the results would largely measure the garbage
+ * collection of an ever larger in-memory database.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SqlInsertBenchmark {
+	public static final int BATCH = 100;
+
+	/**
+	 * The number of rows inserted by each iteration.
+	 */
+	public static final int ROWS = 20000;
+
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	private SqlDatabase db;
+	private SqlTable<SqlQueryBenchmark.Row> table;
+	private int next;
+
+	@Setup(Level.Iteration)
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:insert" + databases.incrementAndGet()));
+		table = new SqlTable<>(db, "items", SqlQueryBenchmark.Row.class,
+				new SqlTable.Column("id", SqlType.INT, true),
+				new SqlTable.Column("owner", SqlType.INT),
+				new SqlTable.Column("name", SqlType.VARCHAR(64)),
+				new SqlTable.Column("created", SqlType.DATETIME));
+		table.create();
+		next = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void teardown() {
+		db.close();
+	}
+
+	/**
+	 * Insert a single row, in its own transaction.
+	 */
+	@Benchmark
+	@Warmup(iterations = 100, batchSize = ROWS)
+	@Measurement(iterations = 50, batchSize = ROWS)
+	@OperationsPerInvocation(ROWS)
+	public void insert() {
+		table.insert(SqlQueryBenchmark.row(next++));
+	}
+
+	/**
+	 * Insert a batch of rows, in a single transaction.
+	 */
+	@Benchmark
+	@Warmup(iterations = 100, batchSize = ROWS / BATCH)
+	@Measurement(iterations = 50, batchSize = ROWS / BATCH)
+	@OperationsPerInvocation(ROWS)
+	public void insertAll() {
+		ArrayList<SqlQueryBenchmark.Row> rows = new ArrayList<>(BATCH);
+		for (int i = 0; i != BATCH; ++i) {
+			rows.add(SqlQueryBenchmark.row(next++));
+		}
+		table.insertAll(rows, BATCH);
+	}
+}
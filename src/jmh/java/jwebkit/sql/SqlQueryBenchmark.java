@@ -0,0 +1,131 @@
+package jwebkit.sql;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for reading from a table, covering the decoding of rows, the
+ * compilation of queries into SQL, and the execution of small queries with
+ * and without a precompiled plan. Decoding is reported per row, such that
+ * (with the GC profiler) the allocation rate is given per row decoded.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SqlQueryBenchmark {
+	public static final int ROWS = 1000;
+
+	public static class Row extends AbstractSqlRow {
+		public Row(SqlValue... values) {
+			super(values);
+		}
+	}
+
+	private SqlDatabase db;
+	private SqlTable<Row> table;
+	private SqlPlan<Row> byId;
+
+	@Setup(Level.Trial)
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:query"));
+		table = new SqlTable<>(db, "items", Row.class,
+				new SqlTable.Column("id", SqlType.INT, true),
+				new SqlTable.Column("owner", SqlType.INT),
+				new SqlTable.Column("name", SqlType.VARCHAR(64)),
+				new SqlTable.Column("created", SqlType.DATETIME));
+		table.create();
+		ArrayList<Row> rows = new ArrayList<>();
+		for (int i = 0; i != ROWS; ++i) {
+			rows.add(row(i));
+		}
+		table.insertAll(rows);
+		byId = table.select().whereEqual("id", SqlValue.Int(0)).prepare();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		db.close();
+	}
+
+	/**
+	 * Read every row of the table, decoding each into a row instance.
+	 *
+	 * @param bh
+	 */
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void decodeRows(Blackhole bh) {
+		try (SqlCursor<Row> cursor = table.select().cursor()) {
+			while (cursor.hasNext()) {
+				bh.consume(cursor.next());
+			}
+		}
+	}
+
+	/**
+	 * Compile a typical query into its SQL text and parameters, without
+	 * executing it.
+	 *
+	 * @param bh
+	 */
+	@Benchmark
+	public void compileQuery(Blackhole bh) {
+		SqlQuery.Template template = table.select()
+				.whereEqual("owner", SqlValue.Int(1))
+				.whereGreater("id", SqlValue.Int(10))
+				.orderByDesc(table.getColumn("id"))
+				.limit(10)
+				.compile();
+		bh.consume(template.getSql());
+		bh.consume(template.getParameters());
+	}
+
+	/**
+	 * Look up a single row by key, compiling the query each time.
+	 *
+	 * @return
+	 */
+	@Benchmark
+	public Row selectById() {
+		return table.select().whereEqual("id", SqlValue.Int(ROWS / 2)).first();
+	}
+
+	/**
+	 * Look up a single row by key using a precompiled plan.
+	 *
+	 * @return
+	 */
+	@Benchmark
+	public Row selectByIdPlanned() {
+		return byId.first(SqlValue.Int(ROWS / 2));
+	}
+
+	static Row row(int i) {
+		return new Row(SqlValue.Int(i), SqlValue.Int(i % 10), new SqlValue.Text("item" + i),
+				new SqlValue.DateTime(LocalDateTime.of(2024, 1, 1, 0, 0).plusSeconds(i)));
+	}
+}
@@ -0,0 +1,47 @@
+package jwebkit.sql;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for converting plain Java objects into values of a given type.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SqlTypeBenchmark {
+	// Kept in fields, so they are not treated as constants
+	private Object integer = Integer.valueOf(12345);
+	private Object text = "hello world";
+	private Object timestamp = Long.valueOf(1700000000000L);
+
+	@Benchmark
+	public SqlValue intFromObject() {
+		return SqlType.INT.fromObject(integer);
+	}
+
+	@Benchmark
+	public SqlValue textFromObject() {
+		return SqlType.TEXT.fromObject(text);
+	}
+
+	@Benchmark
+	public SqlValue dateTimeFromObject() {
+		return SqlType.DATETIME.fromObject(timestamp);
+	}
+}
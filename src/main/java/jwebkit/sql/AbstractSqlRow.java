@@ -1,5 +1,7 @@
 package jwebkit.sql;
 
+import java.util.Objects;
+
 public abstract class AbstractSqlRow implements SqlRow {
 	private final SqlValue[] items;
 
@@ -28,7 +30,7 @@ public abstract class AbstractSqlRow implements SqlRow {
 			return false;
 		}
 		for (int i = 0; i != items.length; ++i) {
-			if (!items[i].equals(ro.get(i))) {
+			if (!Objects.equals(items[i], ro.get(i))) {
 				return false;
 			}
 		}
@@ -38,10 +40,10 @@ public abstract class AbstractSqlRow implements SqlRow {
 	@Override
 	public int hashCode() {
 		//
-		int hc = items[0].hashCode();
+		int hc = Objects.hashCode(items[0]);
 		//
 		for (int i = 1; i < items.length; ++i) {
-			hc ^= items[i].hashCode();
+			hc ^= Objects.hashCode(items[i]);
 		}
 		return hc;
 	}
@@ -65,7 +67,9 @@ public abstract class AbstractSqlRow implements SqlRow {
 	 * @return
 	 */
 	private static String toString(Object o) {
-		if (o instanceof Integer) {
+		if (o == null) {
+			return "NULL";
+		} else if (o instanceof Integer) {
 			return o.toString();
 		} else if (o instanceof String) {
 			return "\"" + o.toString() + "\"";
@@ -0,0 +1,219 @@
+package jwebkit.sql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces lookups of individual rows by key into batched queries. Rather
+ * than querying the database as each row is requested, requests made via
+ * <code>load()</code> are queued until one of their results is first waited
+ * for (or <code>dispatch()</code> is called), whereupon all queued keys are
+ * resolved using a single "IN" query. Thus, requesting every row needed before
+ * waiting for any of them coalesces the lookups automatically. This
+ * avoids issuing one query per row when e.g. following references from a list
+ * of rows (the so-called "N+1" problem). Every row loaded is remembered, so a
+ * loader is intended to live for a single unit of work (e.g. one web request)
+ * and then be discarded.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+public final class SqlBatchLoader<T extends SqlRow> {
+	private final SqlTable<T> table;
+	private final SqlTable.Column column;
+	private final int index;
+
+	/**
+	 * The results for every key requested so far, including those which have
+	 * not yet been dispatched.
+	 */
+	private final HashMap<SqlValue, Result> results = new HashMap<>();
+
+	/**
+	 * The keys which have been requested, but not yet dispatched.
+	 */
+	private LinkedHashMap<SqlValue, Result> pending = new LinkedHashMap<>();
+
+	private long batches;
+
+	/**
+	 * Construct a loader for rows of a given table, keyed on its primary key.
+	 * The primary key must consist of exactly one column.
+	 *
+	 * @param table
+	 */
+	public SqlBatchLoader(SqlTable<T> table) {
+		this(table, primaryKey(table));
+	}
+
+	/**
+	 * Construct a loader for rows of a given table, keyed on a given column.
+	 * The column should uniquely identify each row, since only one row is
+	 * returned for each key.
+	 *
+	 * @param table
+	 * @param column
+	 */
+	public SqlBatchLoader(SqlTable<T> table, SqlTable.Column column) {
+		this.table = table;
+		this.index = table.indexOf(column);
+		this.column = table.getColumn(index);
+	}
+
+	/**
+	 * Get the number of batched queries issued by this loader.
+	 *
+	 * @return
+	 */
+	public synchronized long getBatchCount() {
+		return batches;
+	}
+
+	/**
+	 * Request the row with a given key. The returned future completes once the
+	 * request is dispatched, with <code>null</code> if there is no such row.
+	 * Waiting for the future (i.e. via <code>get()</code> or
+	 * <code>join()</code>) dispatches every pending request, if it has not
+	 * already been dispatched. However, stages which depend on the future
+	 * (e.g. via <code>thenApply()</code>) do not. Requesting a key which was
+	 * previously requested returns the same future.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public synchronized CompletableFuture<T> load(SqlValue key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Invalid key for batch loader");
+		}
+		Result result = results.get(key);
+		if (result == null) {
+			result = new Result();
+			results.put(key, result);
+			pending.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the row with a given key, or <code>null</code> if there is no such
+	 * row. If the row has not already been loaded, then every pending request
+	 * is dispatched along with it.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public T get(SqlValue key) {
+		CompletableFuture<T> result = load(key);
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Resolve every pending request. The requested keys are looked up using a
+	 * single query, unless there are more than the database accepts in one
+	 * statement, in which case the query is divided accordingly.
+	 */
+	public void dispatch() {
+		Map<SqlValue, Result> batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			pending = new LinkedHashMap<>();
+			batches++;
+		}
+		try {
+			HashMap<SqlValue, T> rows = new HashMap<>();
+			try (SqlCursor<T> cursor = table.select().whereIn(column, new ArrayList<>(batch.keySet())).cursor()) {
+				while (cursor.hasNext()) {
+					T row = cursor.next();
+					rows.put(row.get(index), row);
+				}
+			}
+			for (Map.Entry<SqlValue, Result> e : batch.entrySet()) {
+				e.getValue().complete(rows.get(e.getKey()));
+			}
+		} catch (RuntimeException | Error e) {
+			synchronized (this) {
+				// Allow failed keys to be requested again
+				results.keySet().removeAll(batch.keySet());
+			}
+			for (CompletableFuture<T> result : batch.values()) {
+				result.completeExceptionally(e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Forget every row loaded so far, such that subsequent requests will query
+	 * the database again. Pending requests are unaffected.
+	 */
+	public synchronized void clear() {
+		results.keySet().retainAll(pending.keySet());
+	}
+
+	/**
+	 * The result of a request, which dispatches the pending requests when
+	 * first waited for.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final class Result extends CompletableFuture<T> {
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			demand();
+			return super.get();
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			demand();
+			return super.get(timeout, unit);
+		}
+
+		@Override
+		public T join() {
+			demand();
+			return super.join();
+		}
+
+		private void demand() {
+			if (!isDone()) {
+				try {
+					dispatch();
+				} catch (RuntimeException | Error e) {
+					// Reported through the results which failed, which
+					// includes this one unless it was already dispatched.
+				}
+			}
+		}
+	}
+
+	private static SqlTable.Column primaryKey(SqlTable<?> table) {
+		int[] key = table.getPrimaryKey();
+		if (key.length != 1) {
+			throw new IllegalArgumentException("Batch loader requires a single column primary key");
+		}
+		return table.getColumn(key[0]);
+	}
+}
@@ -0,0 +1,562 @@
+package jwebkit.sql;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.stream.LongStream;
+
+/**
+ * Holds the results of a query in columnar form. Rather than materialising
+ * each row as an object holding its own values, the values of each column are
+ * packed together into primitive arrays. Specifically, integer columns are
+ * held as <code>long[]</code>, text columns as UTF-8 bytes plus offsets, DATE
+ * columns as epoch days and DATETIME columns as epoch milliseconds (UTC). Any
+ * NULL values in a column are recorded in a bitmap. This is considerably more
+ * compact than a collection of rows, and is much better suited to e.g.
+ * aggregating over large results. To that end, the packed columns provide
+ * bulk access to their values (e.g. <code>IntColumn.longs()</code>), which
+ * scans the underlying array directly rather than reading one row at a time.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlColumnBatch {
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The schema of the table from which these results were drawn.
+	 */
+	private final SqlTable<?> table;
+
+	/**
+	 * The columns of this batch, in schema order.
+	 */
+	private final Column[] columns;
+
+	/**
+	 * The number of rows in this batch.
+	 */
+	private int size;
+
+	/**
+	 * The number of rows for which space is allocated in each column.
+	 */
+	private int capacity;
+
+	SqlColumnBatch(SqlTable<?> table) {
+		this.table = table;
+		this.columns = new Column[table.size()];
+		for (int i = 0; i != columns.length; ++i) {
+			columns[i] = Column.create(table.getColumn(i).getType());
+		}
+	}
+
+	/**
+	 * Get the number of rows in this batch.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of columns in this batch.
+	 *
+	 * @return
+	 */
+	public int width() {
+		return columns.length;
+	}
+
+	/**
+	 * Get a given numbered column of this batch.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Column getColumn(int index) {
+		return columns[index];
+	}
+
+	/**
+	 * Get a given named column of this batch.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Column getColumn(String name) {
+		for (int i = 0; i != columns.length; ++i) {
+			if (table.getColumn(i).getName().equals(name)) {
+				return columns[i];
+			}
+		}
+		throw new IllegalArgumentException("Invalid column - " + name);
+	}
+
+	/**
+	 * Get a given named column of this batch, which must hold integers.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public IntColumn getIntColumn(String name) {
+		return as(IntColumn.class, getColumn(name));
+	}
+
+	/**
+	 * Get a given named column of this batch, which must hold text.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public TextColumn getTextColumn(String name) {
+		return as(TextColumn.class, getColumn(name));
+	}
+
+	/**
+	 * Get a given named column of this batch, which must hold dates.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public DateColumn getDateColumn(String name) {
+		return as(DateColumn.class, getColumn(name));
+	}
+
+	/**
+	 * Get a given named column of this batch, which must hold date-times.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public DateTimeColumn getDateTimeColumn(String name) {
+		return as(DateTimeColumn.class, getColumn(name));
+	}
+
+	/**
+	 * Append the current row of a given ResultSet to this batch.
+	 *
+	 * @param rs
+	 * @throws SQLException
+	 */
+	void read(ResultSet rs) throws SQLException {
+		if (size == capacity) {
+			capacity = Math.max(INITIAL_CAPACITY, capacity * 2);
+			for (Column c : columns) {
+				c.grow(capacity);
+			}
+		}
+		for (int i = 0; i != columns.length; ++i) {
+			columns[i].read(rs, i + 1, size);
+		}
+		size = size + 1;
+		for (Column c : columns) {
+			c.size = size;
+		}
+	}
+
+	private static <C extends Column> C as(Class<C> kind, Column column) {
+		if (!kind.isInstance(column)) {
+			throw new IllegalArgumentException("Invalid column kind - " + column.getClass().getSimpleName());
+		}
+		return kind.cast(column);
+	}
+
+	/**
+	 * Represents the values of a single column within a batch.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static abstract class Column {
+		/**
+		 * A bitmap of the rows which are NULL in this column, or null if no
+		 * such rows have been encountered.
+		 */
+		private long[] nulls;
+
+		/**
+		 * The number of rows in this column. Space may be allocated for
+		 * further rows, but these must not be read.
+		 */
+		int size;
+
+		/**
+		 * Get the number of rows in this column.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Check whether the value of this column in a given row is NULL.
+		 *
+		 * @param row
+		 * @return
+		 */
+		public boolean isNull(int row) {
+			Objects.checkIndex(row, size);
+			return nulls != null && (nulls[row >>> 6] & (1L << row)) != 0;
+		}
+
+		/**
+		 * Get the value of this column in a given row as an SqlValue. This is
+		 * provided for convenience, and is not expected to be used in
+		 * performance sensitive code.
+		 *
+		 * @param row
+		 * @return
+		 */
+		public abstract SqlValue get(int row);
+
+		/**
+		 * Read the value of this column for a given row from a ResultSet.
+		 *
+		 * @param rs
+		 * @param index
+		 * @param row
+		 * @throws SQLException
+		 */
+		abstract void read(ResultSet rs, int index, int row) throws SQLException;
+
+		/**
+		 * Ensure this column has space for a given number of rows.
+		 *
+		 * @param capacity
+		 */
+		void grow(int capacity) {
+			if (nulls != null) {
+				nulls = Arrays.copyOf(nulls, (capacity + 63) >>> 6);
+			}
+		}
+
+		/**
+		 * Record that the value of this column in a given row is NULL.
+		 *
+		 * @param row
+		 * @param capacity
+		 */
+		void setNull(int row, int capacity) {
+			if (nulls == null) {
+				nulls = new long[(capacity + 63) >>> 6];
+			}
+			nulls[row >>> 6] |= 1L << row;
+		}
+
+		/**
+		 * Create an empty column appropriate for a given SQL type.
+		 *
+		 * @param type
+		 * @return
+		 */
+		static Column create(SqlType type) {
+			if (type instanceof SqlType.NULLABLE) {
+				type = ((SqlType.NULLABLE<?>) type).getElement();
+			}
+			if (type instanceof SqlType.INT) {
+				return new IntColumn();
+			} else if (type instanceof SqlType.VARCHAR || type instanceof SqlType.TEXT) {
+				return new TextColumn();
+			} else if (type instanceof SqlType.DATE) {
+				return new DateColumn();
+			} else if (type instanceof SqlType.DATETIME) {
+				return new DateTimeColumn();
+			} else {
+				return new ValueColumn(type);
+			}
+		}
+	}
+
+	/**
+	 * A column of integers, which are held as longs.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class IntColumn extends Column {
+		private long[] values = new long[0];
+
+		public long getLong(int row) {
+			Objects.checkIndex(row, size);
+			return values[row];
+		}
+
+		/**
+		 * Get the values of this column in row order, where NULL values are
+		 * given as zero.
+		 *
+		 * @return
+		 */
+		public LongStream longs() {
+			return Arrays.stream(values, 0, size);
+		}
+
+		/**
+		 * Sum the values of this column, where NULL values are ignored.
+		 *
+		 * @return
+		 */
+		public long sum() {
+			long sum = 0;
+			for (int i = 0; i != size; ++i) {
+				sum += values[i];
+			}
+			return sum;
+		}
+
+		/**
+		 * Copy the values of this column into a fresh array, where NULL values
+		 * are given as zero.
+		 *
+		 * @return
+		 */
+		public long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		@Override
+		public SqlValue get(int row) {
+			return isNull(row) ? null : SqlValue.Int(values[row]);
+		}
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			values[row] = rs.getLong(index);
+			if (rs.wasNull()) {
+				setNull(row, values.length);
+			}
+		}
+
+		@Override
+		void grow(int capacity) {
+			super.grow(capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	/**
+	 * A column of strings. The UTF-8 encoding of every string is packed into a
+	 * single byte array, with the string for row <code>i</code> occupying the
+	 * bytes from <code>offsets[i]</code> up to <code>offsets[i+1]</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class TextColumn extends Column {
+		private byte[] data = new byte[0];
+		private int[] offsets = new int[1];
+
+		public String getString(int row) {
+			Objects.checkIndex(row, size);
+			int start = offsets[row];
+			return new String(data, start, offsets[row + 1] - start, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Get the length (in bytes) of the UTF-8 encoding of the string in a
+		 * given row.
+		 *
+		 * @param row
+		 * @return
+		 */
+		public int getLength(int row) {
+			Objects.checkIndex(row, size);
+			return offsets[row + 1] - offsets[row];
+		}
+
+		@Override
+		public SqlValue get(int row) {
+			return isNull(row) ? null : new SqlValue.Text(getString(row));
+		}
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			String s = rs.getString(index);
+			int start = offsets[row];
+			if (s == null) {
+				setNull(row, offsets.length - 1);
+				offsets[row + 1] = start;
+			} else {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				if (start + bytes.length > data.length) {
+					data = Arrays.copyOf(data, Math.max(start + bytes.length, data.length * 2));
+				}
+				System.arraycopy(bytes, 0, data, start, bytes.length);
+				offsets[row + 1] = start + bytes.length;
+			}
+		}
+
+		@Override
+		void grow(int capacity) {
+			super.grow(capacity);
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+		}
+	}
+
+	/**
+	 * A column of dates, which are held as days since the epoch.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class DateColumn extends Column {
+		private long[] days = new long[0];
+
+		public long getEpochDay(int row) {
+			Objects.checkIndex(row, size);
+			return days[row];
+		}
+
+		public LocalDate getLocalDate(int row) {
+			return LocalDate.ofEpochDay(getEpochDay(row));
+		}
+
+		/**
+		 * Get the values of this column in row order as days since the epoch,
+		 * where NULL values are given as zero.
+		 *
+		 * @return
+		 */
+		public LongStream epochDays() {
+			return Arrays.stream(days, 0, size);
+		}
+
+		/**
+		 * Copy the values of this column into a fresh array of days since the
+		 * epoch, where NULL values are given as zero.
+		 *
+		 * @return
+		 */
+		public long[] toEpochDayArray() {
+			return Arrays.copyOf(days, size);
+		}
+
+		@Override
+		public SqlValue get(int row) {
+			return isNull(row) ? null : new SqlValue.Date(getLocalDate(row));
+		}
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			java.sql.Date date = rs.getDate(index);
+			if (date == null) {
+				setNull(row, days.length);
+			} else {
+				days[row] = date.toLocalDate().toEpochDay();
+			}
+		}
+
+		@Override
+		void grow(int capacity) {
+			super.grow(capacity);
+			days = Arrays.copyOf(days, capacity);
+		}
+	}
+
+	/**
+	 * A column of date-times, which are held as milliseconds since the epoch
+	 * (taking them to be UTC).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class DateTimeColumn extends Column {
+		private long[] millis = new long[0];
+
+		public long getEpochMillis(int row) {
+			Objects.checkIndex(row, size);
+			return millis[row];
+		}
+
+		public LocalDateTime getLocalDateTime(int row) {
+			long ms = getEpochMillis(row);
+			int nanos = (int) Math.floorMod(ms, 1000L) * 1000000;
+			return LocalDateTime.ofEpochSecond(Math.floorDiv(ms, 1000L), nanos, ZoneOffset.UTC);
+		}
+
+		/**
+		 * Get the values of this column in row order as milliseconds since the
+		 * epoch, where NULL values are given as zero.
+		 *
+		 * @return
+		 */
+		public LongStream epochMillis() {
+			return Arrays.stream(millis, 0, size);
+		}
+
+		/**
+		 * Copy the values of this column into a fresh array of milliseconds
+		 * since the epoch, where NULL values are given as zero.
+		 *
+		 * @return
+		 */
+		public long[] toEpochMillisArray() {
+			return Arrays.copyOf(millis, size);
+		}
+
+		@Override
+		public SqlValue get(int row) {
+			return isNull(row) ? null : new SqlValue.DateTime(getLocalDateTime(row));
+		}
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			Timestamp timestamp = rs.getTimestamp(index);
+			if (timestamp == null) {
+				setNull(row, millis.length);
+			} else {
+				millis[row] = timestamp.toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+			}
+		}
+
+		@Override
+		void grow(int capacity) {
+			super.grow(capacity);
+			millis = Arrays.copyOf(millis, capacity);
+		}
+	}
+
+	/**
+	 * A column of values for which there is no packed representation.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class ValueColumn extends Column {
+		private final SqlType type;
+		private SqlValue[] values = new SqlValue[0];
+
+		private ValueColumn(SqlType type) {
+			this.type = type;
+		}
+
+		@Override
+		public SqlValue get(int row) {
+			Objects.checkIndex(row, size);
+			return values[row];
+		}
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			values[row] = type.read(rs, index);
+			if (values[row] == null) {
+				setNull(row, values.length);
+			}
+		}
+
+		@Override
+		void grow(int capacity) {
+			super.grow(capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+}
@@ -0,0 +1,628 @@
+package jwebkit.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A bounded pool of JDBC connections, each of which carries its own cache of
+ * prepared statements. Connections are opened on demand up to a maximum size,
+ * validated when taken from the pool after being idle for a while, and closed
+ * once they have been idle for too long (though never below the minimum
+ * size) by a background evictor. A thread which already holds a connection is
+ * given the same connection again when it asks for another, which means nested
+ * operations (e.g. inserting whilst iterating a query) cannot deadlock against
+ * the pool.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlConnectionPool {
+	/**
+	 * The number of seconds allowed for validating a connection.
+	 */
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	/**
+	 * The number of milliseconds a connection must have been idle before it
+	 * is validated on being taken from the pool. Connections used more
+	 * recently are assumed valid, which avoids a round trip to the database
+	 * for every operation.
+	 */
+	private static final long VALIDATION_IDLE_TIME = 1000;
+
+	/**
+	 * The number of milliseconds to wait for the connection of a pool around a
+	 * single connection. A thread asking for the connection whilst its own
+	 * open cursor holds it fails immediately, but a thread waiting on a cursor
+	 * held by some other thread cannot tell whether that cursor will ever be
+	 * closed.
+	 */
+	public static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+
+	/**
+	 * Provides the physical connections used to fill a pool. This is satisfied
+	 * by e.g. <code>dataSource::getConnection</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Factory {
+		public Connection open() throws SQLException;
+	}
+
+	private final Factory factory;
+	private final int minSize;
+	private final int maxSize;
+	private final long acquireTimeout;
+	private final long idleTimeout;
+	private final int statementCacheSize;
+
+	/**
+	 * Closes connections which have exceeded the idle timeout, or null if
+	 * idle connections are never closed.
+	 */
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * The idle connections, with the most recently used at the front.
+	 */
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+	/**
+	 * Every connection currently open, whether idle or in use.
+	 */
+	private final ArrayList<PooledConnection> connections = new ArrayList<>();
+
+	/**
+	 * The connection currently held by each thread (if any).
+	 */
+	private final ThreadLocal<PooledConnection> owned = new ThreadLocal<>();
+
+	/**
+	 * The number of connections currently open, including those being opened.
+	 */
+	private int size;
+	private int active;
+	private long acquires;
+	private long timeouts;
+	private long totalWait;
+	private long maxWait;
+	// Statement counts carried over from connections which have been closed
+	private long statementHits;
+	private long statementMisses;
+	private long statementEvictions;
+
+	/**
+	 * Construct a pool around a single existing connection, which is shared by
+	 * all users in turn. Threads wait at most
+	 * <code>DEFAULT_ACQUIRE_TIMEOUT</code> for the connection. Since the pool
+	 * cannot open a replacement, it is unusable once this connection fails.
+	 *
+	 * @param connection
+	 * @param statementCacheSize
+	 */
+	public SqlConnectionPool(Connection connection, int statementCacheSize) {
+		this.factory = () -> {
+			throw new SQLException("Connection is no longer valid");
+		};
+		this.minSize = 1;
+		this.maxSize = 1;
+		this.acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+		this.idleTimeout = 0;
+		this.statementCacheSize = statementCacheSize;
+		this.evictor = null;
+		PooledConnection c = new PooledConnection(connection, statementCacheSize);
+		this.connections.add(c);
+		this.idle.push(c);
+		this.size = 1;
+	}
+
+	/**
+	 * Construct a pool which opens at most <code>maxSize</code> connections
+	 * from a given factory.
+	 *
+	 * @param factory
+	 *            Used to open new connections.
+	 * @param minSize
+	 *            Number of connections which are kept open even when idle.
+	 * @param maxSize
+	 *            Maximum number of connections which may be open at once.
+	 * @param acquireTimeout
+	 *            Milliseconds to wait for a connection before giving up, or
+	 *            zero to wait indefinitely.
+	 * @param idleTimeout
+	 *            Milliseconds after which an idle connection is closed, or
+	 *            zero to never close idle connections.
+	 * @param statementCacheSize
+	 *            Number of prepared statements cached per connection.
+	 * @throws SQLException
+	 *             If the minimum number of connections could not be opened.
+	 */
+	public SqlConnectionPool(Factory factory, int minSize, int maxSize, long acquireTimeout, long idleTimeout,
+			int statementCacheSize) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid connection pool size");
+		} else if (acquireTimeout < 0 || idleTimeout < 0) {
+			throw new IllegalArgumentException("Invalid connection pool timeout");
+		}
+		this.factory = factory;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.acquireTimeout = acquireTimeout;
+		this.idleTimeout = idleTimeout;
+		this.statementCacheSize = statementCacheSize;
+		for (int i = 0; i != minSize; ++i) {
+			PooledConnection c = new PooledConnection(factory.open(), statementCacheSize);
+			connections.add(c);
+			idle.push(c);
+			size++;
+		}
+		if (idleTimeout > 0) {
+			this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "jwebkit-sql-evictor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+		} else {
+			this.evictor = null;
+		}
+	}
+
+	/**
+	 * Get the maximum number of connections this pool may open.
+	 *
+	 * @return
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Get the number of connections currently open.
+	 *
+	 * @return
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the number of connections currently in use.
+	 *
+	 * @return
+	 */
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	/**
+	 * Get the number of open connections which are not currently in use.
+	 *
+	 * @return
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Get the fraction of the maximum pool size which is currently in use.
+	 *
+	 * @return
+	 */
+	public synchronized double getUtilization() {
+		return (double) active / maxSize;
+	}
+
+	/**
+	 * Get the number of times a connection has been taken from this pool.
+	 *
+	 * @return
+	 */
+	public synchronized long getAcquireCount() {
+		return acquires;
+	}
+
+	/**
+	 * Get the number of times a thread gave up waiting for a connection.
+	 *
+	 * @return
+	 */
+	public synchronized long getTimeoutCount() {
+		return timeouts;
+	}
+
+	/**
+	 * Get the total time (in nanoseconds) spent waiting to take connections
+	 * from this pool.
+	 *
+	 * @return
+	 */
+	public synchronized long getTotalWaitTime() {
+		return totalWait;
+	}
+
+	/**
+	 * Get the longest time (in nanoseconds) spent waiting to take a connection
+	 * from this pool.
+	 *
+	 * @return
+	 */
+	public synchronized long getMaxWaitTime() {
+		return maxWait;
+	}
+
+	/**
+	 * Get the number of times a prepared statement was reused, across all
+	 * connections.
+	 *
+	 * @return
+	 */
+	public synchronized long getStatementHitCount() {
+		long count = statementHits;
+		for (PooledConnection c : connections) {
+			count += c.statements.getHitCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of times a prepared statement had to be freshly prepared,
+	 * across all connections.
+	 *
+	 * @return
+	 */
+	public synchronized long getStatementMissCount() {
+		long count = statementMisses;
+		for (PooledConnection c : connections) {
+			count += c.statements.getMissCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of prepared statements evicted from their caches, across
+	 * all connections.
+	 *
+	 * @return
+	 */
+	public synchronized long getStatementEvictionCount() {
+		long count = statementEvictions;
+		for (PooledConnection c : connections) {
+			count += c.statements.getEvictionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Take a connection from this pool, waiting if necessary for one to become
+	 * available. If the calling thread already holds a connection, then that
+	 * connection is returned again. Every call must be matched by a call to
+	 * <code>release()</code>.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	PooledConnection acquire() throws SQLException {
+		Thread thread = Thread.currentThread();
+		PooledConnection current = owned.get();
+		if (current != null && current.owner == thread && current.holds > 0) {
+			current.holds++;
+			return current;
+		}
+		long start = System.nanoTime();
+		while (true) {
+			PooledConnection connection = take(start);
+			if (connection == null) {
+				// We've reserved a slot for a new connection.
+				try {
+					connection = new PooledConnection(factory.open(), statementCacheSize);
+				} catch (SQLException | RuntimeException e) {
+					synchronized (this) {
+						size--;
+						active--;
+						notifyAll();
+					}
+					throw e;
+				}
+				synchronized (this) {
+					connections.add(connection);
+				}
+			} else if (System.currentTimeMillis() - connection.lastUsed > VALIDATION_IDLE_TIME
+					&& !isValid(connection)) {
+				discard(connection);
+				continue;
+			}
+			long wait = System.nanoTime() - start;
+			synchronized (this) {
+				acquires++;
+				totalWait += wait;
+				maxWait = Math.max(maxWait, wait);
+			}
+			connection.owner = thread;
+			connection.holds = 1;
+			owned.set(connection);
+			return connection;
+		}
+	}
+
+	/**
+	 * Return a connection previously taken from this pool. The connection only
+	 * becomes available to other threads once every matching call to
+	 * <code>acquire()</code> has been released.
+	 *
+	 * @param connection
+	 */
+	void release(PooledConnection connection) {
+		if (--connection.holds > 0) {
+			return;
+		}
+		if (owned.get() == connection) {
+			owned.remove();
+		}
+		connection.detachedFrom = null;
+		connection.owner = null;
+		connection.lastUsed = System.currentTimeMillis();
+		ArrayList<PooledConnection> expired;
+		synchronized (this) {
+			active--;
+			idle.push(connection);
+			expired = removeExpired();
+			notifyAll();
+		}
+		for (PooledConnection c : expired) {
+			close(c);
+		}
+	}
+
+	/**
+	 * Detach a connection from the thread which acquired it, provided that
+	 * thread holds it only once. Subsequent requests from that thread are then
+	 * given a different connection. This is used when a connection is handed
+	 * off to be used (and eventually released) by some other thread. Should
+	 * that thread ask for a connection whilst this is the only one, it fails
+	 * immediately rather than waiting for itself.
+	 *
+	 * @param connection
+	 */
+	void detach(PooledConnection connection) {
+		Thread thread = Thread.currentThread();
+		if (connection.holds == 1 && connection.owner == thread) {
+			owned.remove();
+			connection.detachedFrom = thread;
+			connection.owner = null;
+		}
+	}
+
+	/**
+	 * Attach a connection which is not held by any thread to the current
+	 * thread, as though it had been acquired by it. This reverses
+	 * <code>detach()</code>, such that operations nested within the current
+	 * thread's use of the connection are given it again. Nothing is done if
+	 * the connection is held by a thread, or if the current thread already
+	 * holds some other connection.
+	 *
+	 * @param connection
+	 * @return True if the connection was attached, in which case it should be
+	 *         detached again once the current thread has finished with it.
+	 */
+	boolean attach(PooledConnection connection) {
+		Thread thread = Thread.currentThread();
+		PooledConnection current = owned.get();
+		if (current != null && current.owner == thread && current.holds > 0) {
+			return false;
+		} else if (!PooledConnection.OWNER.compareAndSet(connection, null, thread)) {
+			// Held by some other thread
+			return false;
+		}
+		connection.detachedFrom = null;
+		owned.set(connection);
+		return true;
+	}
+
+	/**
+	 * Close any idle connections which have exceeded the idle timeout, whilst
+	 * keeping at least the minimum number of connections open.
+	 */
+	public void evictIdle() {
+		ArrayList<PooledConnection> expired;
+		synchronized (this) {
+			expired = removeExpired();
+		}
+		for (PooledConnection c : expired) {
+			close(c);
+		}
+	}
+
+	/**
+	 * Close all idle connections in this pool, and stop evicting connections
+	 * from it. Connections which are in use are unaffected.
+	 */
+	public void close() {
+		if (evictor != null) {
+			evictor.shutdown();
+		}
+		ArrayList<PooledConnection> closing;
+		synchronized (this) {
+			closing = new ArrayList<>(idle);
+			idle.clear();
+			size -= closing.size();
+		}
+		for (PooledConnection c : closing) {
+			close(c);
+		}
+	}
+
+	/**
+	 * Take an idle connection, or reserve a slot for a new connection (in which
+	 * case null is returned), waiting until one of these is possible.
+	 *
+	 * @param start
+	 * @return
+	 * @throws SQLException
+	 */
+	private synchronized PooledConnection take(long start) throws SQLException {
+		while (true) {
+			if (!idle.isEmpty()) {
+				active++;
+				return idle.pop();
+			} else if (size < maxSize) {
+				size++;
+				active++;
+				return null;
+			} else if (isHeldByCursorOf(Thread.currentThread())) {
+				throw new SQLException("Connection is held by an open cursor on this thread");
+			}
+			try {
+				if (acquireTimeout == 0) {
+					wait();
+				} else {
+					long remaining = acquireTimeout - (System.nanoTime() - start) / 1000000;
+					if (remaining <= 0) {
+						timeouts++;
+						throw new SQLTimeoutException("Timeout waiting for connection");
+					}
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Check whether every connection in this pool is held by an open cursor
+	 * which has been detached from a given thread. In which case, that thread
+	 * would wait forever for a connection, since none can be released until
+	 * it closes its cursor.
+	 *
+	 * @param thread
+	 * @return
+	 */
+	private boolean isHeldByCursorOf(Thread thread) {
+		if (connections.size() < size) {
+			// A connection is being opened
+			return false;
+		}
+		for (PooledConnection c : connections) {
+			if (c.detachedFrom != thread) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove idle connections which have exceeded the idle timeout, whilst
+	 * keeping at least the minimum number of connections open. The removed
+	 * connections are returned so they can be closed outside the lock.
+	 *
+	 * @return
+	 */
+	private ArrayList<PooledConnection> removeExpired() {
+		ArrayList<PooledConnection> expired = new ArrayList<>();
+		if (idleTimeout > 0) {
+			long threshold = System.currentTimeMillis() - idleTimeout;
+			// Least recently used connections are at the back
+			Iterator<PooledConnection> iterator = idle.descendingIterator();
+			while (iterator.hasNext() && size > minSize) {
+				PooledConnection c = iterator.next();
+				if (c.lastUsed >= threshold) {
+					break;
+				}
+				iterator.remove();
+				size--;
+				expired.add(c);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Close a connection which was taken from this pool and found to be
+	 * broken, freeing its slot for a new connection.
+	 *
+	 * @param connection
+	 */
+	private void discard(PooledConnection connection) {
+		synchronized (this) {
+			size--;
+			active--;
+			notifyAll();
+		}
+		close(connection);
+	}
+
+	private boolean isValid(PooledConnection connection) {
+		try {
+			return connection.connection.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void close(PooledConnection connection) {
+		synchronized (this) {
+			connections.remove(connection);
+			statementHits += connection.statements.getHitCount();
+			statementMisses += connection.statements.getMissCount();
+			statementEvictions += connection.statements.getEvictionCount();
+		}
+		try {
+			connection.statements.clear();
+		} catch (SQLException e) {
+			// Nothing more we can do here, since the connection is going.
+		}
+		try {
+			connection.connection.close();
+		} catch (SQLException e) {
+			// As above
+		}
+	}
+
+	/**
+	 * A physical connection managed by a pool, along with its statement cache
+	 * and information about the thread currently holding it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	static final class PooledConnection {
+		private static final AtomicReferenceFieldUpdater<PooledConnection, Thread> OWNER = AtomicReferenceFieldUpdater
+				.newUpdater(PooledConnection.class, Thread.class, "owner");
+
+		private final Connection connection;
+		private final SqlStatementCache statements;
+		private volatile Thread owner;
+		/**
+		 * The thread from which this connection was detached, whose open cursor
+		 * still holds it.
+		 */
+		private volatile Thread detachedFrom;
+		private volatile int holds;
+		private volatile long lastUsed;
+
+		private PooledConnection(Connection connection, int statementCacheSize) {
+			this.connection = connection;
+			this.statements = new SqlStatementCache(connection, statementCacheSize);
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		public SqlStatementCache getStatements() {
+			return statements;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package jwebkit.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
+
+/**
+ * A cursor acts as a go-between for the JDBC ResultSet and the SqlRow values
+ * returned by a query. Rows are decoded one at a time as the cursor advances,
+ * so (subject to the fetch size) a result need never be held in memory as a
+ * whole. The cursor holds a connection from the pool until it is closed, which
+ * happens automatically once the final row has been reached. A cursor which
+ * may be abandoned early should therefore be used in a try-with-resources
+ * statement.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+public final class SqlCursor<T extends SqlRow> implements Iterator<T>, AutoCloseable {
+	private final PooledConnection connection;
+	private String sql;
+	private ResultSet data;
+	private final SqlTable<T> table;
+	private final SqlRowDecoder<T> decoder;
+	/**
+	 * The remaining parts of the query, which are executed in turn on the same
+	 * connection once the current results are exhausted. This is empty unless
+	 * the query had to be divided.
+	 */
+	private final Iterator<SqlQuery.Template> parts;
+	private final int fetchSize;
+	/**
+	 * Describes the execution of the current part, as reported to the query
+	 * listener.
+	 */
+	private SqlDatabase.Execution execution;
+	/**
+	 * Indicates the ResultSet is positioned on a row which has not yet been
+	 * returned.
+	 */
+	private boolean ready;
+	private boolean closed;
+
+	SqlCursor(PooledConnection connection, String sql, ResultSet data, SqlDatabase.Execution execution,
+			SqlTable<T> table, Iterator<SqlQuery.Template> parts, int fetchSize) {
+		this.connection = connection;
+		this.sql = sql;
+		this.data = data;
+		this.execution = execution;
+		this.table = table;
+		this.decoder = table.getDecoder();
+		this.parts = parts;
+		this.fetchSize = fetchSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (!ready && !closed) {
+			try {
+				while (!data.next()) {
+					if (!parts.hasNext()) {
+						close();
+						return false;
+					}
+					execute(parts.next());
+				}
+				ready = true;
+				execution.rows++;
+			} catch (SQLException e) {
+				close();
+				throw new RuntimeException(e.getMessage(), e);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Replace the current results with those of the next part of the query.
+	 *
+	 * @param part
+	 * @throws SQLException
+	 */
+	private void execute(SqlQuery.Template part) throws SQLException {
+		SqlDatabase db = table.getDatabase();
+		db.closeResults(connection, sql, data, execution);
+		// Until the next part is executed, there are no results to close
+		data = null;
+		sql = part.getSql() + ";";
+		List<SqlValue> parameters = part.getParameters();
+		execution = new SqlDatabase.Execution(parameters, 0);
+		data = db.query(connection, sql, parameters, fetchSize);
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		ready = false;
+		try {
+			return decoder.decode(data);
+		} catch (SQLException e) {
+			close();
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Advance this cursor without decoding the row, returning the underlying
+	 * ResultSet positioned on that row (or null if there are no more rows).
+	 * This allows callers within this package to read rows in some other form.
+	 *
+	 * @return
+	 */
+	ResultSet advance() {
+		if (!hasNext()) {
+			return null;
+		}
+		ready = false;
+		return data;
+	}
+
+	/**
+	 * Detach this cursor's connection from the current thread, so that the
+	 * cursor can be handed off to and closed by some other thread. Unless it
+	 * was already held for some other purpose, the current thread will not be
+	 * given this connection again whilst the cursor is open.
+	 */
+	void detach() {
+		table.getDatabase().getConnectionPool().detach(connection);
+	}
+
+	/**
+	 * Attach this cursor's connection to the current thread, having previously
+	 * been detached from the thread which opened it. Database operations on
+	 * the current thread are then given this connection, until it is detached
+	 * again.
+	 *
+	 * @return True if the connection was attached.
+	 */
+	boolean attach() {
+		return table.getDatabase().getConnectionPool().attach(connection);
+	}
+
+	/**
+	 * Check whether this cursor has been closed.
+	 *
+	 * @return
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close this cursor, releasing its statement and connection. This has no
+	 * effect if the cursor is already closed.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			ready = false;
+			try {
+				if (data != null) {
+					table.getDatabase().close(connection, sql, data, execution);
+				} else {
+					table.getDatabase().release(connection);
+				}
+			} catch (SQLException e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -1,24 +1,104 @@
 package jwebkit.sql;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.sql.*;
-import java.time.LocalDateTime;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
 
 public class SqlDatabase {
 	/**
-	 * The JDBC connection which provides access to the physical database
-	 * backing this object.
+	 * The maximum number of parameters bound to a single statement, unless
+	 * otherwise specified. This is the limit imposed by older versions of
+	 * SQLite, which is also within the limits of other common databases.
+	 */
+	public static final int DEFAULT_MAX_PARAMETERS = 999;
+
+	/**
+	 * The pool of JDBC connections which provide access to the physical
+	 * database backing this object.
 	 */
-	private Connection connection;
+	private final SqlConnectionPool pool;
 
 	/**
 	 * The set of bound tables in this database object.
 	 */
 	private Map<String, SqlTable> tables;
 
+	/**
+	 * The cache of query results, or null if results are not cached.
+	 */
+	private volatile SqlResultCache resultCache;
+
+	/**
+	 * The executor on which asynchronous operations are run, or null if the
+	 * default executor should be used.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * The default executor, which is created on first use.
+	 */
+	private ExecutorService defaultExecutor;
+
+	/**
+	 * Limits the number of asynchronous operations which run at once to the
+	 * number of connections available, so that excess operations queue here
+	 * rather than timing out against the pool.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * The maximum number of parameters bound to a single statement.
+	 */
+	private volatile int maxParameters = DEFAULT_MAX_PARAMETERS;
+
+	/**
+	 * The SQL dialect of the database, which is determined on first use.
+	 */
+	private volatile SqlDialect dialect;
+
+	/**
+	 * The transaction in progress on each thread, if any.
+	 */
+	private final ThreadLocal<SqlTransaction> transaction = new ThreadLocal<>();
+
+	/**
+	 * Notified of every statement executed on this database.
+	 */
+	private volatile SqlQueryListener listener = SqlQueryListener.NONE;
+
+	/**
+	 * The log of statements which took too long, or null if they are not
+	 * recorded.
+	 */
+	private volatile SqlSlowQueryLog slowQueryLog;
+
 	public SqlDatabase(Connection connection) {
-		this.tables = new HashMap<>();
-		this.connection = connection;
+		this(connection, SqlStatementCache.DEFAULT_CAPACITY);
+	}
+
+	public SqlDatabase(Connection connection, int statementCacheSize) {
+		this(new SqlConnectionPool(connection, statementCacheSize));
+	}
+
+	/**
+	 * Construct a database whose connections are drawn from a given pool. This
+	 * allows operations to proceed concurrently from many threads.
+	 *
+	 * @param pool
+	 */
+	public SqlDatabase(SqlConnectionPool pool) {
+		this.tables = new ConcurrentHashMap<>();
+		this.pool = pool;
+		this.permits = new Semaphore(pool.getMaxSize(), true);
 	}
 
 	/**
@@ -30,6 +110,244 @@ public class SqlDatabase {
 		return tables.get(tableName);
 	}
 
+	/**
+	 * Get the connection pool used by this database. This is useful for
+	 * monitoring e.g. pool utilisation and prepared statement reuse.
+	 *
+	 * @return
+	 */
+	public SqlConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Get the cache used for query results, or null if there is none.
+	 *
+	 * @return
+	 */
+	public SqlResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Set the cache used for query results, or null to stop caching. Only
+	 * queries collected via <code>SqlQuery.collectCached()</code> make use of
+	 * this cache.
+	 *
+	 * @param cache
+	 */
+	public void setResultCache(SqlResultCache cache) {
+		this.resultCache = cache;
+	}
+
+	/**
+	 * Get the SQL dialect of the database, as determined from the metadata
+	 * reported by its driver.
+	 *
+	 * @return
+	 */
+	public SqlDialect getDialect() {
+		SqlDialect d = dialect;
+		if (d == null) {
+			try {
+				PooledConnection connection = acquire();
+				try {
+					d = SqlDialect.of(connection.getConnection().getMetaData());
+				} finally {
+					release(connection);
+				}
+			} catch (SQLException e) {
+				throw new RuntimeException("SQL Exception", e);
+			}
+			dialect = d;
+		}
+		return d;
+	}
+
+	/**
+	 * Get the listener notified of every statement executed on this database.
+	 *
+	 * @return
+	 */
+	public SqlQueryListener getQueryListener() {
+		return listener;
+	}
+
+	/**
+	 * Set the listener notified of every statement executed on this database,
+	 * or null to stop notifying any listener.
+	 *
+	 * @param listener
+	 */
+	public void setQueryListener(SqlQueryListener listener) {
+		this.listener = listener == null ? SqlQueryListener.NONE : listener;
+	}
+
+	/**
+	 * Get the log of statements which took too long, or null if there is none.
+	 *
+	 * @return
+	 */
+	public SqlSlowQueryLog getSlowQueryLog() {
+		return slowQueryLog;
+	}
+
+	/**
+	 * Set the log into which statements taking longer than its threshold are
+	 * recorded, or null to stop recording them.
+	 *
+	 * @param log
+	 */
+	public void setSlowQueryLog(SqlSlowQueryLog log) {
+		this.slowQueryLog = log;
+	}
+
+	/**
+	 * Get the maximum number of parameters bound to a single statement.
+	 *
+	 * @return
+	 */
+	public int getMaxParameters() {
+		return maxParameters;
+	}
+
+	/**
+	 * Set the maximum number of parameters bound to a single statement. Queries
+	 * with large IN clauses are divided so as to stay within this limit, which
+	 * should therefore not exceed that of the database driver.
+	 *
+	 * @param maxParameters
+	 */
+	public void setMaxParameters(int maxParameters) {
+		if (maxParameters < 1) {
+			throw new IllegalArgumentException("Invalid maximum number of parameters");
+		}
+		this.maxParameters = maxParameters;
+	}
+
+	/**
+	 * Set the executor on which asynchronous operations are run, or null to
+	 * use the default. The default uses a virtual thread per operation where
+	 * the JVM supports them, and otherwise a fixed pool of threads matching
+	 * the maximum number of connections.
+	 *
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Get the executor on which asynchronous operations are run.
+	 *
+	 * @return
+	 */
+	public Executor getExecutor() {
+		Executor e = executor;
+		if (e != null) {
+			return e;
+		}
+		synchronized (this) {
+			if (defaultExecutor == null) {
+				defaultExecutor = newDefaultExecutor(pool.getMaxSize());
+			}
+			return defaultExecutor;
+		}
+	}
+
+	/**
+	 * Run a given unit of work as a single transaction, which is committed if
+	 * the work completes normally and rolled back if it throws. Every
+	 * operation performed on this database by the current thread during the
+	 * work forms part of the transaction, although operations performed on
+	 * other threads (e.g. asynchronous operations) do not. If a transaction is
+	 * already in progress on this thread, then the work is nested within it
+	 * using a savepoint.
+	 *
+	 * @param work
+	 * @return The result of the work.
+	 */
+	public <R> R inTransaction(Function<SqlTransaction, R> work) {
+		return inTransaction(null, work);
+	}
+
+	/**
+	 * Run a given unit of work as a single transaction with a given isolation
+	 * level. The isolation level is ignored if the work is nested within a
+	 * transaction already in progress.
+	 *
+	 * @param isolation
+	 *            The isolation level, or null for the connection's default.
+	 * @param work
+	 * @return The result of the work.
+	 */
+	public <R> R inTransaction(SqlTransaction.Isolation isolation, Function<SqlTransaction, R> work) {
+		SqlTransaction outer = transaction.get();
+		if (outer != null) {
+			return outer.nested(work);
+		}
+		try {
+			PooledConnection connection = acquire();
+			try {
+				Connection conn = connection.getConnection();
+				boolean autoCommit = conn.getAutoCommit();
+				int level = conn.getTransactionIsolation();
+				if (isolation != null) {
+					conn.setTransactionIsolation(isolation.getLevel());
+				}
+				conn.setAutoCommit(false);
+				SqlTransaction tx = new SqlTransaction(conn);
+				transaction.set(tx);
+				try {
+					R result = work.apply(tx);
+					if (tx.isRollbackOnly()) {
+						conn.rollback();
+					} else {
+						conn.commit();
+					}
+					return result;
+				} catch (SQLException | RuntimeException | Error e) {
+					// Including when the commit itself fails, since the
+					// transaction must not be left open when auto-commit is
+					// restored (which some drivers take as a commit).
+					try {
+						conn.rollback();
+					} catch (SQLException x) {
+						e.addSuppressed(x);
+					}
+					throw e;
+				} finally {
+					transaction.remove();
+					conn.setAutoCommit(autoCommit);
+					if (isolation != null) {
+						conn.setTransactionIsolation(level);
+					}
+					for (SqlTable<?> table : tx.getModified()) {
+						modified(table, null);
+					}
+				}
+			} finally {
+				release(connection);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Close all idle connections held by this database, and shut down the
+	 * default executor (if it was started).
+	 */
+	public void close() {
+		pool.close();
+		synchronized (this) {
+			if (defaultExecutor != null) {
+				defaultExecutor.shutdown();
+				defaultExecutor = null;
+			}
+		}
+	}
+
 	// ================================================================
 	// Private Helpers
 	// ================================================================
@@ -48,29 +366,193 @@ public class SqlDatabase {
 	}
 
 	/**
-	 * Execute a given SQL query. This is given package level visibility so that
-	 * it may be called from other classes in this package.
+	 * Run a given operation asynchronously on this database's executor. At
+	 * most one operation per pooled connection runs at any one time. If the
+	 * operation fails, the returned future completes exceptionally with the
+	 * failure.
+	 *
+	 * @param operation
+	 * @return
+	 */
+	<R> CompletableFuture<R> async(Supplier<R> operation) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted waiting for connection", e);
+			}
+			try {
+				return operation.get();
+			} finally {
+				permits.release();
+			}
+		}, getExecutor());
+	}
+
+	/**
+	 * Take a connection from the pool for this database. The connection must be
+	 * handed back via <code>release()</code> once it is no longer required.
 	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	PooledConnection acquire() throws SQLException {
+		return pool.acquire();
+	}
+
+	/**
+	 * Hand back a connection previously taken via <code>acquire()</code>.
+	 *
+	 * @param connection
+	 */
+	void release(PooledConnection connection) {
+		pool.release(connection);
+	}
+
+	/**
+	 * Execute a given SQL query on a given connection, binding the given
+	 * values to its placeholders in order. This is given package level
+	 * visibility so that it may be called from other classes in this package.
+	 *
+	 * @param connection
 	 * @param sql
+	 * @param parameters
+	 * @param fetchSize
+	 *            Number of rows to fetch at a time, or zero for the driver's
+	 *            default.
 	 * @return
 	 * @throws SQLException
 	 */
-	ResultSet query(String sql) throws SQLException {
-		Statement stmt = connection.createStatement();
-		return stmt.executeQuery(sql);
+	ResultSet query(PooledConnection connection, String sql, List<SqlValue> parameters, int fetchSize)
+			throws SQLException {
+		SqlQueryListener l = listener;
+		long started = System.nanoTime();
+		l.started(sql, parameters.size());
+		SqlStatementCache statements = connection.getStatements();
+		PreparedStatement stmt;
+		try {
+			stmt = statements.acquire(sql);
+		} catch (SQLException | RuntimeException e) {
+			finished(l, sql, parameters, parameters.size(), -1, System.nanoTime() - started, e);
+			throw e;
+		}
+		try {
+			bind(stmt, parameters);
+			stmt.setFetchSize(fetchSize);
+			return stmt.executeQuery();
+		} catch (SQLException | RuntimeException e) {
+			statements.release(sql, stmt);
+			finished(l, sql, parameters, parameters.size(), -1, System.nanoTime() - started, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Close a ResultSet previously returned from <code>query()</code> for the
+	 * given SQL, thereby allowing its statement to be reused. The connection on
+	 * which the query was executed is then released.
+	 *
+	 * @param connection
+	 * @param sql
+	 * @param results
+	 * @param execution
+	 *            Describes the execution of the query, as reported to the
+	 *            query listener.
+	 * @throws SQLException
+	 */
+	void close(PooledConnection connection, String sql, ResultSet results, Execution execution)
+			throws SQLException {
+		try {
+			closeResults(connection, sql, results, execution);
+		} finally {
+			release(connection);
+		}
 	}
 
 	/**
-	 * Execute a given SQL update. This is given package level visibility so that
-	 * it may be called from other classes in this package.
+	 * Close a ResultSet previously returned from <code>query()</code> for the
+	 * given SQL, thereby allowing its statement to be reused. Unlike
+	 * <code>close()</code>, the connection itself is not released.
 	 *
+	 * @param connection
 	 * @param sql
+	 * @param results
+	 * @param execution
+	 *            Describes the execution of the query, as reported to the
+	 *            query listener.
+	 * @throws SQLException
+	 */
+	void closeResults(PooledConnection connection, String sql, ResultSet results, Execution execution)
+			throws SQLException {
+		PreparedStatement stmt = (PreparedStatement) results.getStatement();
+		try {
+			results.close();
+		} finally {
+			connection.getStatements().release(sql, stmt);
+			finished(listener, sql, execution.parameters, execution.parameters.size(), execution.rows,
+					System.nanoTime() - execution.started, null);
+		}
+	}
+
+	/**
+	 * Records the details of a query whose results are being read, which are
+	 * reported to the query listener once those results are closed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	static final class Execution {
+		private final long started = System.nanoTime();
+		private final List<SqlValue> parameters;
+		/**
+		 * The number of rows read so far, or -1 if this is not known.
+		 */
+		long rows;
+
+		Execution(List<SqlValue> parameters, long rows) {
+			this.parameters = parameters;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * Execute a given SQL update, binding the given values to its placeholders
+	 * in order. This is given package level visibility so that it may be
+	 * called from other classes in this package.
+	 *
+	 * @param sql
+	 * @param parameters
 	 * @return
 	 * @throws SQLException
 	 */
-	int update(String sql) throws SQLException {
-		Statement stmt = connection.createStatement();
-		return stmt.executeUpdate(sql);
+	int update(String sql, List<SqlValue> parameters) throws SQLException {
+		SqlQueryListener l = listener;
+		long started = System.nanoTime();
+		l.started(sql, parameters.size());
+		int count = -1;
+		Exception failure = null;
+		try {
+			PooledConnection connection = acquire();
+			try {
+				SqlStatementCache statements = connection.getStatements();
+				PreparedStatement stmt = statements.acquire(sql);
+				try {
+					bind(stmt, parameters);
+					count = stmt.executeUpdate();
+					return count;
+				} finally {
+					statements.release(sql, stmt);
+				}
+			} finally {
+				release(connection);
+			}
+		} catch (SQLException | RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			finished(l, sql, parameters, parameters.size(), count, System.nanoTime() - started, failure);
+		}
 	}
 
 	<T extends SqlRow> void create(SqlTable<T> table) throws SQLException {
@@ -82,10 +564,32 @@ public class SqlDatabase {
 			SqlTable.Column col = table.getColumn(i);
 			sql += col.getName() + " " + col.getType();
 		}
+		int[] key = table.getPrimaryKey();
+		if (key.length != 0) {
+			sql += ",PRIMARY KEY(";
+			for (int i = 0; i != key.length; ++i) {
+				if (i != 0) {
+					sql += ",";
+				}
+				sql += table.getColumn(key[i]).getName();
+			}
+			sql += ")";
+		}
 		sql += ");";
-		System.out.println("QUERY : " + sql);
-		Statement stmt = connection.createStatement();
-		stmt.execute(sql);
+		SqlQueryListener l = listener;
+		long started = System.nanoTime();
+		l.started(sql, 0);
+		Exception failure = null;
+		PooledConnection connection = acquire();
+		try (Statement stmt = connection.getConnection().createStatement()) {
+			stmt.execute(sql);
+		} catch (SQLException | RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			release(connection);
+			finished(l, sql, Collections.emptyList(), 0, 0, System.nanoTime() - started, failure);
+		}
 	}
 
 	/**
@@ -96,11 +600,16 @@ public class SqlDatabase {
 	 * @throws SQLException
 	 */
 	<T extends SqlRow> boolean exists(SqlTable<T> table) throws SQLException {
-		DatabaseMetaData meta = connection.getMetaData();
-		ResultSet tables = meta.getTables(null, null, table.getName(), null);
-		boolean r = tables.next();
-		tables.close();
-		return r;
+		PooledConnection connection = acquire();
+		try {
+			DatabaseMetaData meta = connection.getConnection().getMetaData();
+			ResultSet tables = meta.getTables(null, null, table.getName(), null);
+			boolean r = tables.next();
+			tables.close();
+			return r;
+		} finally {
+			release(connection);
+		}
 	}
 
 	/**
@@ -117,39 +626,371 @@ public class SqlDatabase {
 			throw new IllegalArgumentException("invalid row for table");
 		}
 		// Perform the insert query.
-		String sql = "INSERT INTO " + table.getName() + " VALUES(";
+		String sql = insertSql(table);
+		ArrayList<SqlValue> parameters = new ArrayList<>();
 		for (int i = 0; i != row.size(); ++i) {
-			if (i != 0) {
-				sql += ",";
-			}
-			sql += "?"; // row.get(i);
+			parameters.add(row.get(i));
 		}
-		sql += ");";
-		System.out.println("QUERY : " + sql);
-		//
-		PreparedStatement stmt = connection.prepareStatement(sql);
+		try {
+			update(sql, parameters);
+		} finally {
+			modified(table, row);
+		}
+	}
+
+	/**
+	 * INSERT a sequence of rows INTO a given table using JDBC batches of a
+	 * given size. When the connection is in auto-commit mode, each batch is
+	 * executed in its own transaction and so rows from earlier batches remain
+	 * inserted should a later batch fail. Otherwise, the batches simply form
+	 * part of the enclosing transaction.
+	 *
+	 * @param table
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 * @throws SQLException
+	 */
+	<T extends SqlRow> List<int[]> insertAll(SqlTable<T> table, Iterator<T> rows, int batchSize)
+			throws SQLException {
+		int[] columns = new int[table.size()];
+		for (int i = 0; i != columns.length; ++i) {
+			columns[i] = i;
+		}
+		return batch(table, insertSql(table), columns, rows, batchSize);
+	}
+
+	/**
+	 * UPDATE a given row of a given table, identifying it by its primary key.
+	 * Every column not forming part of the key is set to the value held in the
+	 * given row.
+	 *
+	 * @param table
+	 * @param row
+	 * @return True if the row was updated.
+	 * @throws SQLException
+	 */
+	<T extends SqlRow> boolean update(SqlTable<T> table, T row) throws SQLException {
+		// Sanity check the row is a valid instance.
+		if(!table.isInstance(row)) {
+			throw new IllegalArgumentException("invalid row for table");
+		}
+		String sql = updateSql(table);
+		ArrayList<SqlValue> parameters = new ArrayList<>();
+		for (int i : updateColumns(table)) {
+			parameters.add(row.get(i));
+		}
+		try {
+			return update(sql, parameters) > 0;
+		} finally {
+			modified(table, row);
+		}
+	}
+
+	/**
+	 * UPDATE a sequence of rows of a given table by primary key, using JDBC
+	 * batches of a given size. As for <code>insertAll()</code>, each batch is
+	 * committed separately when the connection is in auto-commit mode.
+	 *
+	 * @param table
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 * @throws SQLException
+	 */
+	<T extends SqlRow> List<int[]> updateAll(SqlTable<T> table, Iterator<T> rows, int batchSize)
+			throws SQLException {
+		return batch(table, updateSql(table), updateColumns(table), rows, batchSize);
+	}
+
+	/**
+	 * DELETE a sequence of rows of a given table by primary key, using JDBC
+	 * batches of a given size. As for <code>insertAll()</code>, each batch is
+	 * committed separately when the connection is in auto-commit mode. Rows of
+	 * a table without a primary key are matched on every column (as for
+	 * <code>delete()</code>), and so are deleted one at a time since the
+	 * statement for each depends on which of its values are null.
+	 *
+	 * @param table
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 * @throws SQLException
+	 */
+	<T extends SqlRow> List<int[]> deleteAll(SqlTable<T> table, Iterator<T> rows, int batchSize)
+			throws SQLException {
+		int[] key = table.getPrimaryKey();
+		if (key.length != 0) {
+			return batch(table, deleteSql(table), key, rows, batchSize);
+		}
+		ArrayList<int[]> counts = new ArrayList<>();
+		while (rows.hasNext()) {
+			delete(table, rows.next());
+			counts.add(new int[] { Statement.SUCCESS_NO_INFO });
+		}
+		return counts;
+	}
+
+	/**
+	 * INSERT a given row INTO a given table or, if a row with the same primary
+	 * key already exists, UPDATE that row instead. Where the dialect of the
+	 * database provides a single statement for this, that is used. Otherwise,
+	 * an UPDATE is attempted first followed by an INSERT if no row was
+	 * updated (which, unlike the single statement, is not atomic).
+	 *
+	 * @param table
+	 * @param row
+	 * @throws SQLException
+	 */
+	<T extends SqlRow> void upsert(SqlTable<T> table, T row) throws SQLException {
+		// Sanity check the row is a valid instance.
+		if(!table.isInstance(row)) {
+			throw new IllegalArgumentException("invalid row for table");
+		}
+		String sql = getDialect().upsertSql(table);
+		if (sql == null) {
+			upsertInParts(table, row);
+			return;
+		}
+		ArrayList<SqlValue> parameters = new ArrayList<>();
 		for (int i = 0; i != row.size(); ++i) {
-			SqlValue value = row.get(i);
-			if(value instanceof SqlValue.Int) {
-				SqlValue.Int v = (SqlValue.Int) value;
-				// FIXME: what to do if value doesn't fit into int?
-				stmt.setInt(i+1, v.asInt());
-			} else if(value instanceof SqlValue.Text) {
-				SqlValue.Text t = (SqlValue.Text) value;
-				stmt.setString(i+1, t.asString());
-			} else if(value instanceof SqlValue.Date) {
-				SqlValue.Date d = (SqlValue.Date) value;
-				stmt.setDate(i+1, java.sql.Date.valueOf(d.asLocalDate()));
-			} else if(value instanceof SqlValue.DateTime) {
-				SqlValue.DateTime d = (SqlValue.DateTime) value;
-				LocalDateTime dt = d.asLocalDateTime();
-				java.sql.Date date = java.sql.Date.valueOf(dt.toLocalDate());
-				stmt.setDate(i+1,date);
+			parameters.add(row.get(i));
+		}
+		try {
+			update(sql, parameters);
+		} finally {
+			modified(table, row);
+		}
+	}
+
+	/**
+	 * INSERT or UPDATE a sequence of rows of a given table (as for
+	 * <code>upsert()</code>), using JDBC batches of a given size where the
+	 * dialect of the database allows. Otherwise, each row is upserted in turn
+	 * by an UPDATE and then (if needed) an INSERT, with each batch of rows
+	 * forming a single transaction (or a savepoint, within an enclosing
+	 * transaction). This is still not atomic against other writers, since two
+	 * threads upserting the same new key may both attempt the INSERT. In which
+	 * case, one fails with the database's primary key violation and its batch
+	 * is rolled back.
+	 *
+	 * @param table
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 * @throws SQLException
+	 */
+	<T extends SqlRow> List<int[]> upsertAll(SqlTable<T> table, Iterator<T> rows, int batchSize)
+			throws SQLException {
+		String sql = getDialect().upsertSql(table);
+		if (sql != null) {
+			int[] columns = new int[table.size()];
+			for (int i = 0; i != columns.length; ++i) {
+				columns[i] = i;
+			}
+			return batch(table, sql, columns, rows, batchSize);
+		}
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("invalid batch size");
+		}
+		ArrayList<int[]> counts = new ArrayList<>();
+		while (rows.hasNext()) {
+			counts.add(inTransaction(tx -> {
+				int[] batch = new int[batchSize];
+				int n = 0;
+				while (n != batchSize && rows.hasNext()) {
+					T row = rows.next();
+					if (!table.isInstance(row)) {
+						throw new IllegalArgumentException("invalid row for table");
+					}
+					try {
+						batch[n++] = upsertInParts(table, row);
+					} catch (SQLException e) {
+						throw new RuntimeException("SQL Exception", e);
+					}
+				}
+				return Arrays.copyOf(batch, n);
+			}));
+		}
+		return counts;
+	}
+
+	/**
+	 * Upsert a given row of a given table without a single statement for
+	 * doing so, by attempting an UPDATE followed by an INSERT if no row was
+	 * updated. For a table whose every column is in the primary key, there is
+	 * nothing to update and so the row is only inserted if it does not exist.
+	 *
+	 * @param table
+	 * @param row
+	 * @return The number of rows inserted or updated.
+	 * @throws SQLException
+	 */
+	private <T extends SqlRow> int upsertInParts(SqlTable<T> table, T row) throws SQLException {
+		try {
+			if (table.getPrimaryKey().length == table.size()) {
+				if (exists(table, row)) {
+					return 0;
+				}
 			} else {
-				throw new IllegalArgumentException("unknown value encountered: " + value);
+				ArrayList<SqlValue> parameters = new ArrayList<>();
+				for (int i : updateColumns(table)) {
+					parameters.add(row.get(i));
+				}
+				int count = update(updateSql(table), parameters);
+				if (count > 0) {
+					return count;
+				}
+			}
+			ArrayList<SqlValue> parameters = new ArrayList<>();
+			for (int i = 0; i != row.size(); ++i) {
+				parameters.add(row.get(i));
+			}
+			return update(insertSql(table), parameters);
+		} finally {
+			modified(table, row);
+		}
+	}
+
+	/**
+	 * Check whether a row with the same primary key as a given row exists in a
+	 * given table.
+	 *
+	 * @param table
+	 * @param row
+	 * @return
+	 */
+	private static <T extends SqlRow> boolean exists(SqlTable<T> table, T row) {
+		int[] key = table.getPrimaryKey();
+		SqlValue[] values = new SqlValue[key.length];
+		for (int i = 0; i != key.length; ++i) {
+			values[i] = row.get(key[i]);
+		}
+		return table.exists(values);
+	}
+
+	/**
+	 * Execute a given statement once for each of a sequence of rows, using JDBC
+	 * batches of a given size. The values of each row are bound to the
+	 * parameters of the statement in a given column order.
+	 *
+	 * @param table
+	 * @param sql
+	 * @param columns
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 * @throws SQLException
+	 */
+	private <T extends SqlRow> List<int[]> batch(SqlTable<T> table, String sql, int[] columns, Iterator<T> rows,
+			int batchSize) throws SQLException {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("invalid batch size");
+		}
+		ArrayList<int[]> counts = new ArrayList<>();
+		PooledConnection connection = acquire();
+		try {
+			Connection conn = connection.getConnection();
+			boolean chunked = conn.getAutoCommit();
+			SqlStatementCache statements = connection.getStatements();
+			PreparedStatement stmt = statements.acquire(sql);
+			try {
+				if (chunked) {
+					conn.setAutoCommit(false);
+				}
+				while (rows.hasNext()) {
+					int n = 0;
+					for (; n != batchSize && rows.hasNext(); ++n) {
+						T row = rows.next();
+						// Sanity check the row is a valid instance.
+						if (!table.isInstance(row)) {
+							throw new IllegalArgumentException("invalid row for table");
+						}
+						for (int i = 0; i != columns.length; ++i) {
+							bind(stmt, i + 1, row.get(columns[i]));
+						}
+						stmt.addBatch();
+					}
+					counts.add(executeBatch(sql, stmt, n * columns.length));
+					if (chunked) {
+						conn.commit();
+					}
+				}
+			} catch (SQLException | RuntimeException e) {
+				stmt.clearBatch();
+				if (chunked) {
+					conn.rollback();
+				}
+				throw e;
+			} finally {
+				if (chunked) {
+					conn.setAutoCommit(true);
+				}
+				statements.release(sql, stmt);
+			}
+		} finally {
+			release(connection);
+			modified(table, null);
+		}
+		return counts;
+	}
+
+	/**
+	 * Execute the batch of a given statement, reporting it to the query
+	 * listener.
+	 *
+	 * @param sql
+	 * @param stmt
+	 * @param parameters
+	 *            The total number of values bound to the batch.
+	 * @return The update counts for the batch.
+	 * @throws SQLException
+	 */
+	private int[] executeBatch(String sql, PreparedStatement stmt, int parameters) throws SQLException {
+		SqlQueryListener l = listener;
+		long started = System.nanoTime();
+		l.started(sql, parameters);
+		try {
+			int[] counts = stmt.executeBatch();
+			long rows = 0;
+			for (int count : counts) {
+				if (count < 0) {
+					// The driver does not report the count for every statement
+					rows = -1;
+					break;
+				}
+				rows += count;
 			}
+			finished(l, sql, null, parameters, rows, System.nanoTime() - started, null);
+			return counts;
+		} catch (SQLException | RuntimeException e) {
+			finished(l, sql, null, parameters, -1, System.nanoTime() - started, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Report that a given statement has finished, both to a given query
+	 * listener and, if the statement was slow enough, to the slow query log.
+	 *
+	 * @param l
+	 * @param sql
+	 * @param parameters
+	 *            The values bound to the statement, or null if these are not
+	 *            available (e.g. for a batch).
+	 * @param count
+	 *            The number of values bound to the statement.
+	 * @param rows
+	 * @param nanos
+	 * @param failure
+	 */
+	private void finished(SqlQueryListener l, String sql, List<SqlValue> parameters, int count, long rows, long nanos,
+			Exception failure) {
+		l.finished(sql, count, rows, nanos, failure);
+		SqlSlowQueryLog log = slowQueryLog;
+		if (log != null && nanos >= log.getThreshold()) {
+			log.record(this, sql, parameters, rows, nanos, failure);
 		}
-		stmt.executeUpdate();
 	}
 
 	/**
@@ -165,19 +1006,217 @@ public class SqlDatabase {
 			throw new IllegalArgumentException("invalid row for table");
 		}
 		String sql = "DELETE FROM " + table.getName() + " WHERE ";
+		// Match on the primary key where there is one, otherwise every column.
+		int[] columns = table.getPrimaryKey();
+		if (columns.length == 0) {
+			columns = new int[row.size()];
+			for (int i = 0; i != columns.length; ++i) {
+				columns[i] = i;
+			}
+		}
+		ArrayList<SqlValue> parameters = new ArrayList<>();
+		for (int i = 0; i != columns.length; ++i) {
+			if (i != 0) {
+				sql += " AND ";
+			}
+			String name = table.getColumn(columns[i]).getName();
+			SqlValue value = row.get(columns[i]);
+			if (value == null) {
+				sql += name + " IS NULL";
+			} else {
+				sql += name + "=?";
+				parameters.add(value);
+			}
+		}
+		sql += ";";
+		try {
+			update(sql, parameters);
+		} finally {
+			modified(table, row);
+		}
+	}
 
-		// FIXME: only really need to look at key values
-		for (int i = 0; i != row.size(); ++i) {
+	/**
+	 * Record that a given row of a given table has been modified, or that any
+	 * number of rows may have been if <code>row</code> is null. This ensures
+	 * any cached copies of the affected rows are discarded.
+	 *
+	 * @param table
+	 * @param row
+	 */
+	void modified(SqlTable<?> table, SqlRow row) {
+		SqlTransaction tx = transaction.get();
+		if (tx != null) {
+			tx.modified(table);
+		}
+		// Notify the table bound under this name, since the given table may
+		// be a different instance over the same physical table.
+		SqlTable<?> bound = tables.get(table.getName());
+		table.modified(row);
+		if (bound != null && bound != table) {
+			bound.modified(row);
+		}
+		SqlResultCache cache = resultCache;
+		if (cache != null) {
+			cache.invalidate(table.getName());
+		}
+	}
+
+	/**
+	 * Create the default executor for asynchronous operations. This uses
+	 * virtual threads where the JVM provides them (which is determined
+	 * reflectively, since they are not available on all supported JVMs).
+	 *
+	 * @param threads
+	 *            Number of platform threads to use if virtual threads are not
+	 *            available.
+	 * @return
+	 */
+	private static ExecutorService newDefaultExecutor(int threads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads, r -> {
+				Thread thread = new Thread(r, "jwebkit-sql");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Construct the SQL for inserting a single row into a given table.
+	 *
+	 * @param table
+	 * @return
+	 */
+	private static String insertSql(SqlTable<?> table) {
+		String sql = "INSERT INTO " + table.getName() + " VALUES(";
+		for (int i = 0; i != table.size(); ++i) {
+			if (i != 0) {
+				sql += ",";
+			}
+			sql += "?";
+		}
+		sql += ");";
+		return sql;
+	}
+
+	/**
+	 * Construct the SQL for updating a single row of a given table by primary
+	 * key.
+	 *
+	 * @param table
+	 * @return
+	 */
+	private static String updateSql(SqlTable<?> table) {
+		int[] columns = updateColumns(table);
+		int keys = table.getPrimaryKey().length;
+		String sql = "UPDATE " + table.getName() + " SET ";
+		for (int i = 0; i != columns.length; ++i) {
+			if (i == columns.length - keys) {
+				sql += " WHERE ";
+			} else if (i > columns.length - keys) {
+				sql += " AND ";
+			} else if (i != 0) {
+				sql += ", ";
+			}
+			sql += table.getColumn(columns[i]).getName() + "=?";
+		}
+		sql += ";";
+		return sql;
+	}
+
+	/**
+	 * Construct the SQL for deleting a single row of a given table by primary
+	 * key, whose columns are bound in order.
+	 *
+	 * @param table
+	 * @return
+	 */
+	private static String deleteSql(SqlTable<?> table) {
+		int[] key = table.getPrimaryKey();
+		String sql = "DELETE FROM " + table.getName() + " WHERE ";
+		for (int i = 0; i != key.length; ++i) {
 			if (i != 0) {
 				sql += " AND ";
 			}
-			String name = table.getColumn(i).getName();
-			sql += name + "=" + row.get(i);
+			sql += table.getColumn(key[i]).getName() + "=?";
 		}
 		sql += ";";
-		Statement stmt = connection.createStatement();
-		stmt.execute(sql);
-		System.out.println("QUERY : " + sql);
+		return sql;
 	}
 
+	/**
+	 * Determine the order in which the columns of a row are bound to the
+	 * parameters of <code>updateSql()</code>. That is, every column outside
+	 * the primary key followed by those of the key.
+	 *
+	 * @param table
+	 * @return
+	 */
+	private static int[] updateColumns(SqlTable<?> table) {
+		int[] key = table.getPrimaryKey();
+		if (key.length == 0) {
+			throw new IllegalArgumentException("Update by key requires a primary key");
+		} else if (key.length == table.size()) {
+			throw new IllegalArgumentException("Update by key requires a column outside the primary key");
+		}
+		int[] columns = new int[table.size()];
+		int n = 0;
+		for (int i = 0; i != columns.length; ++i) {
+			if (Arrays.binarySearch(key, i) < 0) {
+				columns[n++] = i;
+			}
+		}
+		System.arraycopy(key, 0, columns, n, key.length);
+		return columns;
+	}
+
+	/**
+	 * Bind a list of values to the parameters of a prepared statement in
+	 * order.
+	 *
+	 * @param stmt
+	 * @param parameters
+	 * @throws SQLException
+	 */
+	static void bind(PreparedStatement stmt, List<SqlValue> parameters) throws SQLException {
+		for (int i = 0; i != parameters.size(); ++i) {
+			bind(stmt, i + 1, parameters.get(i));
+		}
+	}
+
+	/**
+	 * Bind a given value to a numbered parameter of a prepared statement.
+	 *
+	 * @param stmt
+	 * @param index
+	 * @param value
+	 * @throws SQLException
+	 */
+	private static void bind(PreparedStatement stmt, int index, SqlValue value) throws SQLException {
+		if(value == null) {
+			stmt.setNull(index, Types.NULL);
+		} else if(value instanceof SqlValue.Int) {
+			SqlValue.Int v = (SqlValue.Int) value;
+			long l = v.asLong();
+			if (l == (int) l) {
+				stmt.setInt(index, (int) l);
+			} else {
+				stmt.setLong(index, l);
+			}
+		} else if(value instanceof SqlValue.Text) {
+			SqlValue.Text t = (SqlValue.Text) value;
+			stmt.setString(index, t.asString());
+		} else if(value instanceof SqlValue.Date) {
+			SqlValue.Date d = (SqlValue.Date) value;
+			stmt.setDate(index, java.sql.Date.valueOf(d.asLocalDate()));
+		} else if(value instanceof SqlValue.DateTime) {
+			SqlValue.DateTime d = (SqlValue.DateTime) value;
+			stmt.setTimestamp(index, Timestamp.valueOf(d.asLocalDateTime()));
+		} else {
+			throw new IllegalArgumentException("unknown value encountered: " + value);
+		}
+	}
 }
@@ -0,0 +1,135 @@
+package jwebkit.sql;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Identifies the particular flavour of SQL spoken by a database, for those
+ * statements which have no standard (or no widely supported) form. The
+ * dialect of a database is determined from the product name reported by its
+ * driver.
+ *
+ * @author David J. Pearce
+ *
+ */
+public enum SqlDialect {
+	SQLITE,
+	POSTGRESQL,
+	MYSQL,
+	H2,
+	/**
+	 * Any other database, for which only standard SQL is used.
+	 */
+	GENERIC;
+
+	/**
+	 * Determine the dialect of a database from its metadata.
+	 *
+	 * @param metadata
+	 * @return
+	 * @throws SQLException
+	 */
+	public static SqlDialect of(DatabaseMetaData metadata) throws SQLException {
+		String name = metadata.getDatabaseProductName().toLowerCase();
+		if (name.contains("sqlite")) {
+			return SQLITE;
+		} else if (name.contains("postgres")) {
+			return POSTGRESQL;
+		} else if (name.contains("mysql") || name.contains("mariadb")) {
+			return MYSQL;
+		} else if (name.equals("h2")) {
+			return H2;
+		} else {
+			return GENERIC;
+		}
+	}
+
+	/**
+	 * Construct the SQL for inserting a single row into a given table or, if a
+	 * row with the same primary key already exists, replacing the remaining
+	 * columns of that row. The values of the row are given as parameters in
+	 * column order. This is <code>null</code> if the dialect has no such
+	 * statement.
+	 *
+	 * @param table
+	 * @return
+	 */
+	String upsertSql(SqlTable<?> table) {
+		int[] key = table.getPrimaryKey();
+		if (key.length == 0) {
+			throw new IllegalArgumentException("Upsert requires a primary key");
+		}
+		String values = "VALUES(";
+		for (int i = 0; i != table.size(); ++i) {
+			values += (i == 0 ? "?" : ",?");
+		}
+		values += ")";
+		String keys = "";
+		for (int i = 0; i != key.length; ++i) {
+			keys += (i == 0 ? "" : ",") + table.getColumn(key[i]).getName();
+		}
+		switch (this) {
+		case SQLITE:
+		case POSTGRESQL: {
+			String sql = "INSERT INTO " + table.getName() + " " + values + " ON CONFLICT(" + keys + ") DO ";
+			String sets = assignments(table, "excluded.%s");
+			return sql + (sets.isEmpty() ? "NOTHING" : "UPDATE SET " + sets) + ";";
+		}
+		case MYSQL: {
+			String sets = assignments(table, "VALUES(%s)");
+			if (sets.isEmpty()) {
+				// A no-op assignment, since MySQL requires at least one
+				String k = table.getColumn(key[0]).getName();
+				sets = k + "=" + k;
+			}
+			return "INSERT INTO " + table.getName() + " " + values + " ON DUPLICATE KEY UPDATE " + sets + ";";
+		}
+		case H2:
+			return "MERGE INTO " + table.getName() + " KEY(" + keys + ") " + values + ";";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Construct the SQL which asks the database how it would execute a given
+	 * statement, without executing it. The given statement may contain
+	 * placeholders, which are also placeholders of the result. This is
+	 * <code>null</code> if the dialect has no such statement.
+	 *
+	 * @param sql
+	 * @return
+	 */
+	String explainSql(String sql) {
+		switch (this) {
+		case SQLITE:
+			return "EXPLAIN QUERY PLAN " + sql;
+		case POSTGRESQL:
+		case MYSQL:
+		case H2:
+			return "EXPLAIN " + sql;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Construct the assignments for every column outside the primary key of a
+	 * given table, where the value of each is given by a format applied to
+	 * its name.
+	 *
+	 * @param table
+	 * @param format
+	 * @return
+	 */
+	private static String assignments(SqlTable<?> table, String format) {
+		String sql = "";
+		for (int i = 0; i != table.size(); ++i) {
+			SqlTable.Column column = table.getColumn(i);
+			if (!column.isPrimaryKey()) {
+				sql += (sql.isEmpty() ? "" : ", ") + column.getName() + "=" + String.format(format, column.getName());
+			}
+		}
+		return sql;
+	}
+}
@@ -0,0 +1,250 @@
+package jwebkit.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
+
+/**
+ * The compiled form of a query, as returned by <code>SqlQuery.prepare()</code>.
+ * A plan holds the SQL text of the query, along with the values bound to its
+ * placeholders. Executing a plan involves no further compilation, and hence
+ * no string building, so frequently executed queries can be planned once
+ * (e.g. into a static field) and then executed as needed.
+ *
+ * The values given to the SET and WHERE clauses of the original query become
+ * the parameters of the plan, in the order they appear in the SQL. These are
+ * followed by the value of each ORDER BY column for the "after" row of keyset
+ * pagination, and then the LIMIT and OFFSET, where the query has them. A plan
+ * can be executed either with new values for every parameter, or with the
+ * original values via <code>execute()</code>. For example:
+ *
+ * <pre>
+ * SqlPlan&lt;User&gt; byName = users.select().whereEqual("name", new SqlValue.Text("")).prepare();
+ * User u = byName.first(new SqlValue.Text("dave"));
+ * SqlPlan&lt;User&gt; page = users.select().orderBy(users.getColumn("id")).limit(10).prepare();
+ * List&lt;User&gt; third = page.collect(new ArrayList&lt;&gt;(), SqlValue.Int(10), SqlValue.Int(20));
+ * </pre>
+ *
+ * Note that a WHERE clause given a <code>null</code> value compiles to "IS
+ * NULL" and so has no parameter.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+public final class SqlPlan<T extends SqlRow> {
+	private final SqlTable<T> table;
+	private final String sql;
+	/**
+	 * The original value of each parameter.
+	 */
+	private final SqlValue[] values;
+	/**
+	 * The type of each parameter.
+	 */
+	private final SqlType[] types;
+	/**
+	 * The parameter bound to each placeholder. A parameter may be bound to
+	 * several placeholders (e.g. for keyset pagination).
+	 */
+	private final int[] slots;
+
+	SqlPlan(SqlTable<T> table, SqlQuery.Template template) {
+		this.table = table;
+		this.sql = template.getSql() + ";";
+		this.types = template.getParameterTypes().toArray(new SqlType[0]);
+		this.slots = template.getParameterSlots();
+		this.values = new SqlValue[types.length];
+		List<SqlValue> placeholders = template.getParameters();
+		for (int i = 0; i != slots.length; ++i) {
+			values[slots[i]] = placeholders.get(i);
+		}
+	}
+
+	public SqlTable<T> getTable() {
+		return table;
+	}
+
+	/**
+	 * Get the SQL text executed by this plan.
+	 *
+	 * @return
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * Get the number of values required to execute this plan with new values.
+	 *
+	 * @return
+	 */
+	public int getParameterCount() {
+		return types.length;
+	}
+
+	/**
+	 * Get the value of each parameter in the query from which this plan was
+	 * compiled.
+	 *
+	 * @return
+	 */
+	public SqlValue[] getValues() {
+		return values.clone();
+	}
+
+	/**
+	 * Execute this plan with the values of the query from which it was
+	 * compiled, and return a cursor over its results.
+	 *
+	 * @return
+	 */
+	public SqlCursor<T> execute() {
+		return open(place(values), 0);
+	}
+
+	/**
+	 * Execute this plan with a given value for each parameter, and return a
+	 * cursor over its results, using the driver's default fetch size.
+	 *
+	 * @param parameters
+	 *            The value of each parameter.
+	 * @return
+	 */
+	public SqlCursor<T> cursor(SqlValue... parameters) {
+		return cursor(0, parameters);
+	}
+
+	/**
+	 * Execute this plan and return a cursor over its results, hinting to the
+	 * driver how many rows should be fetched at a time.
+	 *
+	 * @param fetchSize
+	 *            Number of rows to fetch at a time, or zero for the driver's
+	 *            default.
+	 * @param parameters
+	 *            The value of each parameter.
+	 * @return
+	 */
+	public SqlCursor<T> cursor(int fetchSize, SqlValue... parameters) {
+		return open(bind(parameters), fetchSize);
+	}
+
+	/**
+	 * Execute this plan with the given values bound to its placeholders.
+	 *
+	 * @param bound
+	 * @param fetchSize
+	 * @return
+	 */
+	private SqlCursor<T> open(List<SqlValue> bound, int fetchSize) {
+		try {
+			SqlDatabase db = table.getDatabase();
+			PooledConnection connection = db.acquire();
+			try {
+				SqlDatabase.Execution execution = new SqlDatabase.Execution(bound, 0);
+				ResultSet r = db.query(connection, sql, bound, fetchSize);
+				return new SqlCursor<>(connection, sql, r, execution, table, Collections.emptyIterator(), fetchSize);
+			} catch (SQLException | RuntimeException e) {
+				db.release(connection);
+				throw e;
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Execute this plan and return its first result, or <code>null</code> if
+	 * there are no results.
+	 *
+	 * @param parameters
+	 *            The value of each parameter.
+	 * @return
+	 */
+	public T first(SqlValue... parameters) {
+		try (SqlCursor<T> cursor = cursor(parameters)) {
+			return cursor.hasNext() ? cursor.next() : null;
+		}
+	}
+
+	/**
+	 * Execute this plan and collect all of its results into a given
+	 * collection.
+	 *
+	 * @param collection
+	 * @param parameters
+	 *            The value of each parameter.
+	 * @return
+	 */
+	public <S extends Collection<T>> S collect(S collection, SqlValue... parameters) {
+		try (SqlCursor<T> cursor = cursor(parameters)) {
+			while (cursor.hasNext()) {
+				collection.add(cursor.next());
+			}
+		}
+		return collection;
+	}
+
+	/**
+	 * Execute this plan where results are not expected (e.g. for an UPDATE or
+	 * DELETE), returning the number of rows affected.
+	 *
+	 * @param parameters
+	 *            The value of each parameter.
+	 * @return
+	 */
+	public int apply(SqlValue... parameters) {
+		List<SqlValue> bound = bind(parameters);
+		SqlDatabase db = table.getDatabase();
+		try {
+			return db.update(sql, bound);
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		} finally {
+			db.modified(table, null);
+		}
+	}
+
+	/**
+	 * Determine the values to bind to the placeholders of this plan, given the
+	 * value of each parameter. There must be exactly one value for each
+	 * parameter, appropriate for its type, else an IllegalArgumentException is
+	 * thrown.
+	 *
+	 * @param parameters
+	 * @return
+	 */
+	private List<SqlValue> bind(SqlValue[] parameters) {
+		if (parameters.length != types.length) {
+			throw new IllegalArgumentException("Expected " + types.length + " parameters for query plan");
+		}
+		for (int i = 0; i != parameters.length; ++i) {
+			SqlValue value = parameters[i];
+			if (value == null || !types[i].isInstance(value)) {
+				throw new IllegalArgumentException("Invalid value for parameter " + i + " of query plan");
+			}
+		}
+		return place(parameters);
+	}
+
+	/**
+	 * Determine the value bound to each placeholder of this plan, given the
+	 * value of each parameter.
+	 *
+	 * @param parameters
+	 * @return
+	 */
+	private List<SqlValue> place(SqlValue[] parameters) {
+		SqlValue[] bound = new SqlValue[slots.length];
+		for (int i = 0; i != slots.length; ++i) {
+			bound[i] = parameters[slots[i]];
+		}
+		return Arrays.asList(bound);
+	}
+}
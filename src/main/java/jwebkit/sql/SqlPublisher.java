@@ -0,0 +1,156 @@
+package jwebkit.sql;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the results of a query to subscribers as they request them. Each
+ * subscriber receives its own execution of the query, which begins on the
+ * first request. Rows are read from the cursor only as demand allows, so a
+ * slow subscriber holds at most the rows fetched by the driver in memory
+ * rather than the whole result. The cursor is closed once exhausted, on error,
+ * or when the subscription is cancelled.
+ *
+ * Whilst delivering rows, the executor thread holds the cursor's connection
+ * and so a subscriber may itself use the database from <code>onNext()</code>
+ * (e.g. to write each row elsewhere), with those operations reusing the
+ * connection. Between deliveries, the connection is detached so that other
+ * work on that thread does not share it.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+final class SqlPublisher<T extends SqlRow> implements Flow.Publisher<T> {
+	private final SqlQuery<T> query;
+	private final int fetchSize;
+	private final Executor executor;
+
+	public SqlPublisher(SqlQuery<T> query, int fetchSize, Executor executor) {
+		this.query = query;
+		this.fetchSize = fetchSize;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		Subscription<T> subscription = new Subscription<>(this, subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * A subscription delivers rows to a single subscriber. Rows are emitted by
+	 * a drain loop which runs on the publisher's executor, and at most one
+	 * such loop is active for a subscription at any time.
+	 *
+	 * @param <T>
+	 */
+	private static final class Subscription<T extends SqlRow> implements Flow.Subscription, Runnable {
+		private final SqlPublisher<T> publisher;
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		/**
+		 * Counts requests to drain which have not yet been observed by the
+		 * drain loop.
+		 */
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable invalid;
+		// The following are only accessed from within the drain loop
+		private SqlCursor<T> cursor;
+		private boolean done;
+
+		public Subscription(SqlPublisher<T> publisher, Flow.Subscriber<? super T> subscriber) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				invalid = new IllegalArgumentException("non-positive subscription request");
+			} else {
+				demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (pending.getAndIncrement() == 0) {
+				publisher.executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = pending.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void drain() {
+			if (done) {
+				return;
+			} else if (cancelled) {
+				finish();
+				return;
+			} else if (invalid != null) {
+				finish();
+				subscriber.onError(invalid);
+				return;
+			}
+			// Whether this thread holds the cursor's connection
+			boolean held = false;
+			try {
+				if (cursor == null) {
+					cursor = publisher.query.cursor(publisher.fetchSize);
+					held = true;
+				} else {
+					held = cursor.attach();
+				}
+				while (demand.get() > 0 && !cancelled && invalid == null) {
+					if (!cursor.hasNext()) {
+						finish();
+						subscriber.onComplete();
+						return;
+					}
+					T row = cursor.next();
+					demand.decrementAndGet();
+					subscriber.onNext(row);
+				}
+			} catch (Throwable e) {
+				finish();
+				subscriber.onError(e);
+			} finally {
+				if (held && !done) {
+					// The next drain may run on another thread
+					cursor.detach();
+				}
+			}
+		}
+
+		private void finish() {
+			done = true;
+			if (cursor != null) {
+				try {
+					cursor.close();
+				} catch (RuntimeException e) {
+					// Nothing else to do, since the subscription is over.
+				}
+			}
+		}
+	}
+}
@@ -2,7 +2,22 @@ package jwebkit.sql;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
 
 /**
  * Represents a given SELECT oR DELETE query. The results of this query are
@@ -62,19 +77,149 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 
 	protected abstract SqlTable<T> getTable();
 
-	protected abstract String getQueryString();
+	/**
+	 * Compile this query into a given template. Every node of the query
+	 * contributes its clause to the template, whilst any values are recorded
+	 * as parameters rather than being written into the SQL text. Thus, queries
+	 * which differ only in their values compile to the same SQL.
+	 *
+	 * @param template
+	 */
+	protected abstract void compile(Template template);
+
+	/**
+	 * Compile this query into a fresh template.
+	 *
+	 * @return
+	 */
+	protected Template compile() {
+		Template template = new Template();
+		compile(template);
+		return template;
+	}
+
+	/**
+	 * Compile this query into a plan which can be executed repeatedly, with
+	 * the same or different values, without being compiled again. A plan is
+	 * immutable and so may be kept (e.g. in a static field) and shared between
+	 * threads. Queries whose IN clauses have more values than the database
+	 * accepts in one statement cannot be planned.
+	 *
+	 * @return
+	 */
+	public SqlPlan<T> prepare() {
+		SqlTable<T> table = getTable();
+		Template template = compile();
+		if (template.getParameters().size() > table.getDatabase().getMaxParameters()) {
+			throw new IllegalArgumentException("Too many parameters for query plan");
+		}
+		return new SqlPlan<>(table, template);
+	}
 
+	/**
+	 * Execute this query and return a cursor over its results, using the
+	 * driver's default fetch size. The cursor releases its connection once
+	 * exhausted, or if reading a row fails. However, an iterator cannot be
+	 * closed when abandoned early (e.g. when breaking out of a for-each loop),
+	 * in which case the connection remains held. Code which may stop early
+	 * should instead use <code>cursor()</code> in a try-with-resources
+	 * statement.
+	 */
 	@Override
-	public Iterator<T> iterator() {
+	public SqlCursor<T> iterator() {
+		return cursor(0);
+	}
+
+	/**
+	 * Execute this query and return a cursor over its results, using the
+	 * driver's default fetch size. The cursor is closed automatically once
+	 * exhausted, but otherwise should be closed explicitly (e.g. via
+	 * try-with-resources).
+	 *
+	 * @return
+	 */
+	public SqlCursor<T> cursor() {
+		return cursor(0);
+	}
+
+	/**
+	 * Execute this query and return a forward-only, read-only cursor over its
+	 * results, hinting to the driver how many rows should be fetched from the
+	 * database at a time. This allows a large result to be streamed with
+	 * bounded memory. Note that some drivers only honour this hint under
+	 * certain conditions (e.g. PostgreSQL requires auto-commit to be disabled,
+	 * whilst MySQL requires a fetch size of <code>Integer.MIN_VALUE</code>).
+	 *
+	 * @param fetchSize
+	 *            Number of rows to fetch at a time, or zero for the driver's
+	 *            default.
+	 * @return
+	 */
+	public SqlCursor<T> cursor(int fetchSize) {
+		return cursor(compile(), fetchSize);
+	}
+
+	/**
+	 * Execute a given template compiled from this query and return a cursor
+	 * over its results.
+	 *
+	 * @param template
+	 * @param fetchSize
+	 * @return
+	 */
+	private SqlCursor<T> cursor(Template template, int fetchSize) {
 		try {
 			SqlTable<T> table = getTable();
-			ResultSet r = table.getDatabase().query(getQueryString() + ";");
-			return new Iterator<>(r, table);
+			SqlDatabase db = table.getDatabase();
+			List<Template> parts = template.split(db.getMaxParameters());
+			Template first = parts.get(0);
+			String sql = first.getSql() + ";";
+			List<SqlValue> parameters = first.getParameters();
+			PooledConnection connection = db.acquire();
+			try {
+				SqlDatabase.Execution execution = new SqlDatabase.Execution(parameters, 0);
+				ResultSet r = db.query(connection, sql, parameters, fetchSize);
+				return new SqlCursor<>(connection, sql, r, execution, table, parts.subList(1, parts.size()).iterator(),
+						fetchSize);
+			} catch (SQLException | RuntimeException e) {
+				db.release(connection);
+				throw e;
+			}
 		} catch (SQLException e) {
 			throw new RuntimeException("SQL Exception", e);
 		}
 	}
 
+	/**
+	 * Get the first result of this query, or <code>null</code> if there are no
+	 * results.
+	 *
+	 * @return
+	 */
+	public T first() {
+		try (SqlCursor<T> cursor = cursor()) {
+			return cursor.hasNext() ? cursor.next() : null;
+		}
+	}
+
+	/**
+	 * Check whether this query produces any results at all. This only asks the
+	 * database for the existence of a matching row, rather than retrieving the
+	 * row itself.
+	 *
+	 * @return
+	 */
+	public boolean exists() {
+		Template template = compile();
+		template.setCommand("SELECT 1 FROM", getTable());
+		for (Template part : template.split(getTable().getDatabase().getMaxParameters())) {
+			if (execute(part, rs -> rs.next())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Apply the given query. This is normally used for queries where results
 	 * are not expected.
@@ -82,7 +227,17 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 	public int apply() {
 		try {
 			SqlTable<T> table = getTable();
-			return table.getDatabase().update(getQueryString() + ";");
+			SqlDatabase db = table.getDatabase();
+			Template template = compile();
+			try {
+				int count = 0;
+				for (Template part : template.split(db.getMaxParameters())) {
+					count += db.update(part.getSql() + ";", part.getParameters());
+				}
+				return count;
+			} finally {
+				db.modified(table, null);
+			}
 		} catch (SQLException e) {
 			throw new RuntimeException("SQL Exception", e);
 		}
@@ -96,13 +251,214 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 	 * @param collection
 	 */
 	public <S extends Collection<T>> S collect(S collection) {
-		Iterator<T> iterator = iterator();
-		while(iterator.hasNext()) {
-			collection.add(iterator.next());
+		try (SqlCursor<T> cursor = cursor()) {
+			while (cursor.hasNext()) {
+				collection.add(cursor.next());
+			}
 		}
 		return collection;
 	}
 
+	/**
+	 * Collect all results from this query into a list asynchronously. This
+	 * allows several independent queries to proceed in parallel, each on its
+	 * own connection.
+	 *
+	 * @return
+	 */
+	public CompletableFuture<List<T>> collectAsync() {
+		return getTable().getDatabase().async(() -> collect(new ArrayList<>()));
+	}
+
+	/**
+	 * Get the first result of this query asynchronously, which is
+	 * <code>null</code> if there are no results.
+	 *
+	 * @return
+	 */
+	public CompletableFuture<T> firstAsync() {
+		return getTable().getDatabase().async(this::first);
+	}
+
+	/**
+	 * Apply the given query asynchronously, returning the number of rows
+	 * affected.
+	 *
+	 * @return
+	 */
+	public CompletableFuture<Integer> applyAsync() {
+		return getTable().getDatabase().async(this::apply);
+	}
+
+	/**
+	 * Get a publisher which streams the results of this query to each
+	 * subscriber, reading rows from the database only as they are requested.
+	 * The query is executed separately for each subscriber on the database's
+	 * executor, using the driver's default fetch size.
+	 *
+	 * @return
+	 */
+	public Flow.Publisher<T> publisher() {
+		return publisher(0);
+	}
+
+	/**
+	 * Get a publisher which streams the results of this query to each
+	 * subscriber, reading rows from the database only as they are requested.
+	 * Each subscriber holds a connection from the pool until its subscription
+	 * completes or is cancelled. Rows are delivered on the database's executor,
+	 * and any database operations performed by the subscriber whilst handling
+	 * a row reuse that connection.
+	 *
+	 * @param fetchSize
+	 *            Number of rows to fetch at a time, or zero for the driver's
+	 *            default.
+	 * @return
+	 */
+	public Flow.Publisher<T> publisher(int fetchSize) {
+		return new SqlPublisher<>(this, fetchSize, getTable().getDatabase().getExecutor());
+	}
+
+	/**
+	 * Execute this query and return a spliterator over its results. When
+	 * split, blocks of rows are read from the database and handed off, so
+	 * that rows can be constructed and processed in parallel.
+	 */
+	@Override
+	public Spliterator<T> spliterator() {
+		return split();
+	}
+
+	/**
+	 * Execute this query and return a sequential stream of its results. The
+	 * underlying cursor is released once the results are exhausted or the
+	 * stream is closed, so a stream which may not be fully consumed should be
+	 * used in a try-with-resources statement. Until then, the calling thread
+	 * continues to hold the cursor's connection, which is reused by any
+	 * database operations performed within the stream.
+	 *
+	 * @return
+	 */
+	public Stream<T> stream() {
+		return stream(false);
+	}
+
+	/**
+	 * Execute this query and return a parallel stream of its results. Whilst
+	 * rows are necessarily read from the database by one thread at a time, the
+	 * construction of rows and any downstream operations are divided across
+	 * the common fork-join pool. As for <code>stream()</code>, a stream which
+	 * may not be fully consumed should be closed explicitly. Since the cursor's
+	 * connection is no longer held by the calling thread once the stream is
+	 * split, database operations within the stream must take other connections
+	 * from the pool (and so cannot proceed on a single connection database).
+	 *
+	 * @return
+	 */
+	public Stream<T> parallelStream() {
+		return stream(true);
+	}
+
+	private Stream<T> stream(boolean parallel) {
+		SqlSpliterator<T> spliterator = split();
+		return StreamSupport.stream(spliterator, parallel).onClose(spliterator::close);
+	}
+
+	private SqlSpliterator<T> split() {
+		return new SqlSpliterator<>(cursor(0), getTable().getDecoder());
+	}
+
+	/**
+	 * Collect all results from this query into an unmodifiable list, drawing
+	 * them from the database's result cache where possible. If no result cache
+	 * is configured then the query is simply executed. Cached results are
+	 * discarded whenever the table they are drawn from is modified.
+	 *
+	 * @return
+	 */
+	public List<T> collectCached() {
+		SqlTable<T> table = getTable();
+		SqlResultCache cache = table.getDatabase().getResultCache();
+		Template template = compile();
+		Supplier<List<T>> loader = () -> {
+			ArrayList<T> rows = new ArrayList<>();
+			try (SqlCursor<T> cursor = cursor(template, 0)) {
+				while (cursor.hasNext()) {
+					rows.add(cursor.next());
+				}
+			}
+			return rows;
+		};
+		if (cache == null) {
+			return Collections.unmodifiableList(loader.get());
+		} else {
+			return cache.get(table, template.getSql(), template.getParameters(), loader);
+		}
+	}
+
+	/**
+	 * Collect all results from this query into columnar form. This packs the
+	 * values of each column together in primitive arrays, rather than
+	 * materialising each row as an object, and is intended for queries over
+	 * large numbers of rows (e.g. for reports).
+	 *
+	 * @return
+	 */
+	public SqlColumnBatch collectColumnar() {
+		SqlColumnBatch batch = new SqlColumnBatch(getTable());
+		try (SqlCursor<T> cursor = cursor()) {
+			ResultSet rs;
+			while ((rs = cursor.advance()) != null) {
+				batch.read(rs);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+		return batch;
+	}
+
+	/**
+	 * Execute a given template whose results are something other than rows of
+	 * the table (e.g. a count), and read them using a given reader.
+	 *
+	 * @param template
+	 * @param reader
+	 * @return
+	 */
+	private <R> R execute(Template template, Reader<R> reader) {
+		try {
+			SqlDatabase db = getTable().getDatabase();
+			String sql = template.getSql() + ";";
+			List<SqlValue> parameters = template.getParameters();
+			PooledConnection connection = db.acquire();
+			// The number of rows read by the reader is not known
+			SqlDatabase.Execution execution = new SqlDatabase.Execution(parameters, -1);
+			ResultSet rs;
+			try {
+				rs = db.query(connection, sql, parameters, 0);
+			} catch (SQLException | RuntimeException e) {
+				db.release(connection);
+				throw e;
+			}
+			try {
+				return reader.read(rs);
+			} finally {
+				db.close(connection, sql, rs, execution);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Reads the results of a query which does not produce rows of its table.
+	 *
+	 * @param <R>
+	 */
+	private interface Reader<R> {
+		public R read(ResultSet rs) throws SQLException;
+	}
+
 	/**
 	 * Refine a query using a "WHERE column=value" expression. The right-hand
 	 * side must be an appropriate value for the type of the given column, else
@@ -148,7 +504,7 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 	 * @return
 	 */
 	public SqlQuery<T> whereNotEqual(String columnName, SqlValue value) {
-		return whereEqual(getTable().getColumn(columnName),value);
+		return whereNotEqual(getTable().getColumn(columnName),value);
 	}
 
 	/**
@@ -309,6 +665,50 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 		return new Where<>(this,column,Operator.LessThanOrEqual,value);
 	}
 
+	/**
+	 * Refine a query using a "WHERE column IN (value,...,value)" expression.
+	 * Each value must be appropriate for the type of the given column, else an
+	 * IllegalArgumentException is thrown.
+	 *
+	 * @param columnName
+	 *            The name of the column being queried
+	 * @param values
+	 *            The values used to refine the query
+	 * @return
+	 */
+	public SqlQuery<T> whereIn(String columnName, Collection<? extends SqlValue> values) {
+		return whereIn(getTable().getColumn(columnName),values);
+	}
+
+	/**
+	 * Refine a query using a "WHERE column IN (value,...,value)" expression.
+	 * Each value must be appropriate for the type of the given column, else an
+	 * IllegalArgumentException is thrown. Duplicate values are removed, as are
+	 * NULL values (which never match). If there are more values than the
+	 * database accepts as parameters in a single statement, then the query is
+	 * executed in several parts, each with some of the values, and their
+	 * results combined. This is not possible for queries which are ordered,
+	 * limited or grouped.
+	 *
+	 * @param column
+	 *            The column being queried
+	 * @param values
+	 *            The values used to refine the query
+	 * @return
+	 */
+	public SqlQuery<T> whereIn(SqlTable.Column column, Collection<? extends SqlValue> values) {
+		LinkedHashSet<SqlValue> vs = new LinkedHashSet<>();
+		for(SqlValue value : values) {
+			if(value == null) {
+				continue;
+			} else if(!column.getType().isInstance(value)) {
+				throw new IllegalArgumentException("Invalid value for WHERE clause");
+			}
+			vs.add(value);
+		}
+		return new WhereIn<>(this,column,new ArrayList<>(vs));
+	}
+
 	/**
 	 * Refine a query by using an "ORDER BY column,...,column" clause. At least
 	 * one column must be given, else an IllegalArgumentException is thrown.
@@ -354,74 +754,463 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 	}
 
 	/**
-	 * Represents a SELECT query.
-	 *
-	 * @author David J. Pearce
+	 * Refine a query by using a "LIMIT n" clause, so that at most the given
+	 * number of results is returned.
 	 *
-	 * @param <S>
+	 * @param n
+	 *            The maximum number of results
+	 * @return
 	 */
-	public static class Select<S extends SqlRow> extends SqlQuery<S> {
+	public SqlQuery<T> limit(long n) {
+		if(n < 0) {
+			throw new IllegalArgumentException("Invalid value for LIMIT clause");
+		}
+		return new Limit<>(this,n);
+	}
 
-		/**
-		 * The table that this query is operating over.
-		 */
-		private final SqlTable<S> table;
+	/**
+	 * Refine a query by using an "OFFSET n" clause, so that the given number
+	 * of results is skipped. Note that the database must still produce every
+	 * skipped result, so the cost of a query grows with its offset. For paging
+	 * deep into large results, <code>after()</code> should be preferred.
+	 *
+	 * @param n
+	 *            The number of results to skip
+	 * @return
+	 */
+	public SqlQuery<T> offset(long n) {
+		if(n < 0) {
+			throw new IllegalArgumentException("Invalid value for OFFSET clause");
+		}
+		return new Offset<>(this,n);
+	}
 
-		public Select(SqlTable<S> table) {
-			this.table = table;
+	/**
+	 * Refine a query so that only those results which come after a given row
+	 * are returned, according to the columns of its ORDER BY clause. This
+	 * provides keyset pagination: passing the final row of one page gives the
+	 * next, and (given a suitable index) the database can seek directly to it
+	 * regardless of how many pages precede it. The ORDER BY columns should
+	 * uniquely identify each row (e.g. by ending with the primary key), since
+	 * otherwise rows which tie with the given row are skipped.
+	 *
+	 * @param row
+	 *            The last row of the previous page
+	 * @return
+	 */
+	public SqlQuery<T> after(T row) {
+		if(row == null) {
+			throw new IllegalArgumentException("Invalid row for keyset pagination");
 		}
+		return new After<>(this,row);
+	}
 
-		@Override
-		protected String getQueryString() {
-			return "SELECT * FROM " + table.getName();
+	/**
+	 * Count the results of this query. The count is computed by the database,
+	 * so the results themselves are never transferred.
+	 *
+	 * @return
+	 */
+	public long count() {
+		long count = 0;
+		for (long n : aggregate("COUNT(*)", null, rs -> {
+			rs.next();
+			return rs.getLong(1);
+		})) {
+			count += n;
 		}
+		return count;
+	}
 
-		@Override
-		protected SqlTable<S> getTable() {
-			return table;
+	/**
+	 * Sum a given integer column over the results of this query, where NULL
+	 * values are ignored. This is zero if there are no results.
+	 *
+	 * @param column
+	 * @return
+	 */
+	public long sum(SqlTable.Column column) {
+		checkNumeric(column);
+		long sum = 0;
+		for (long n : aggregate("SUM(" + column.getName() + ")", null, rs -> {
+			rs.next();
+			return rs.getLong(1);
+		})) {
+			sum += n;
 		}
+		return sum;
 	}
 
 	/**
-	 * Represents the results of a given DELETE query.
+	 * Determine the least value of a given column over the results of this
+	 * query, where NULL values are ignored. This is <code>null</code> if there
+	 * are no results.
 	 *
-	 * @author David J. Pearce
+	 * @param column
+	 * @return
+	 */
+	public SqlValue min(SqlTable.Column column) {
+		List<SqlValue> values = aggregate("MIN(" + column.getName() + ")", null, rs -> {
+			rs.next();
+			return column.getType().read(rs, 1);
+		});
+		return values.size() == 1 ? values.get(0) : extreme(column, values, true);
+	}
+
+	/**
+	 * Determine the greatest value of a given column over the results of this
+	 * query, where NULL values are ignored. This is <code>null</code> if there
+	 * are no results.
 	 *
-	 * @param <S>
+	 * @param column
+	 * @return
 	 */
-	public static class Delete<S extends SqlRow> extends SqlQuery<S> {
-		/**
-		 * The table that this query is operating over.
-		 */
-		private final SqlTable<S> table;
+	public SqlValue max(SqlTable.Column column) {
+		List<SqlValue> values = aggregate("MAX(" + column.getName() + ")", null, rs -> {
+			rs.next();
+			return column.getType().read(rs, 1);
+		});
+		return values.size() == 1 ? values.get(0) : extreme(column, values, false);
+	}
 
-		public Delete(SqlTable<S> table) {
-			this.table = table;
+	/**
+	 * Determine the average of a given integer column over the results of
+	 * this query, where NULL values are ignored. This is NaN if there are no
+	 * (non-NULL) values.
+	 *
+	 * @param column
+	 * @return
+	 */
+	public double avg(SqlTable.Column column) {
+		checkNumeric(column);
+		// NOTE: the average is computed from the sum and count, since the
+		// type returned by AVG() over integers varies between databases.
+		String c = column.getName();
+		long sum = 0;
+		long count = 0;
+		for (long[] r : aggregate("SUM(" + c + "), COUNT(" + c + ")", null, rs -> {
+			rs.next();
+			return new long[] { rs.getLong(1), rs.getLong(2) };
+		})) {
+			sum += r[0];
+			count += r[1];
 		}
+		return (double) sum / count;
+	}
 
-		@Override
-		protected String getQueryString() {
-			return "DELETE FROM " + table.getName();
+	/**
+	 * Group the results of this query by the given columns, so that aggregates
+	 * can be computed per group.
+	 *
+	 * @param columns
+	 *            The columns being grouped by
+	 * @return
+	 */
+	public Grouping<T> groupBy(SqlTable.Column... columns) {
+		if(columns.length == 0) {
+			throw new IllegalArgumentException("Require at least one column for GROUP BY clause");
 		}
+		return new Grouping<>(this, columns.clone());
+	}
 
-		@Override
-		protected SqlTable<S> getTable() {
-			return table;
+	/**
+	 * Execute an aggregate over the results of this query, reading the result
+	 * using a given reader. If this query has too many values in an IN clause
+	 * to be executed at once, then the aggregate is executed over each part in
+	 * turn and the result for each is returned (in which case the caller must
+	 * combine them). Otherwise, there is exactly one result.
+	 *
+	 * @param aggregate
+	 * @param grouping
+	 * @param reader
+	 * @return
+	 */
+	private <R> List<R> aggregate(String aggregate, String grouping, Reader<R> reader) {
+		Template template = compile();
+		template.setAggregate(aggregate, grouping);
+		ArrayList<R> results = new ArrayList<>();
+		for (Template part : template.split(getTable().getDatabase().getMaxParameters())) {
+			results.add(execute(part, reader));
 		}
+		return results;
 	}
 
 	/**
-	 * Represents the results of a query which are refined by a given WHERE
-	 * clause.
-	 *
-	 * @author David J. Pearce
+	 * Determine the least (or greatest) of the values of a given column, as
+	 * computed separately over each part of this query. Rather than comparing
+	 * these here, the database is asked for the least (or greatest) amongst
+	 * them, so that they are ordered as the database orders them (e.g. by the
+	 * collation of text). Every such value is held by some row of the table,
+	 * hence it suffices to consider those rows holding one of them.
 	 *
-	 * @param <S>
+	 * @param column
+	 * @param values
+	 * @param min
+	 * @return
 	 */
-	private static class Where<S extends SqlRow> extends SqlQuery<S> {
-		private final SqlQuery<S> source;
-		private final SqlTable.Column column;
-		private final Operator operator;
+	private SqlValue extreme(SqlTable.Column column, List<SqlValue> values, boolean min) {
+		ArrayList<SqlValue> candidates = new ArrayList<>();
+		for (SqlValue value : values) {
+			if (value != null) {
+				candidates.add(value);
+			}
+		}
+		if (candidates.size() < 2) {
+			return candidates.isEmpty() ? null : candidates.get(0);
+		}
+		SqlQuery<T> query = getTable().select().whereIn(column, candidates);
+		return min ? query.min(column) : query.max(column);
+	}
+
+	private static void checkNumeric(SqlTable.Column column) {
+		SqlType type = column.getType();
+		if (type instanceof SqlType.NULLABLE) {
+			type = ((SqlType.NULLABLE<?>) type).getElement();
+		}
+		if (!(type instanceof SqlType.INT)) {
+			throw new IllegalArgumentException("Invalid column for numeric aggregate - " + column.getName());
+		}
+	}
+
+	/**
+	 * Represents the results of a query grouped by one or more columns. Each
+	 * aggregate produces a map from the values of the grouping columns (as a
+	 * tuple) to the aggregate for that group, where the groups are ordered by
+	 * those values.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	public static final class Grouping<S extends SqlRow> {
+		private final SqlQuery<S> source;
+		private final SqlTable.Column[] columns;
+
+		private Grouping(SqlQuery<S> source, SqlTable.Column[] columns) {
+			this.source = source;
+			this.columns = columns;
+		}
+
+		/**
+		 * Count the results in each group.
+		 *
+		 * @return
+		 */
+		public Map<SqlTuple, Long> count() {
+			return aggregate("COUNT(*)", rs -> rs.getLong(columns.length + 1));
+		}
+
+		/**
+		 * Sum a given integer column over the results in each group.
+		 *
+		 * @param column
+		 * @return
+		 */
+		public Map<SqlTuple, Long> sum(SqlTable.Column column) {
+			checkNumeric(column);
+			return aggregate("SUM(" + column.getName() + ")", rs -> rs.getLong(columns.length + 1));
+		}
+
+		/**
+		 * Determine the least value of a given column in each group.
+		 *
+		 * @param column
+		 * @return
+		 */
+		public Map<SqlTuple, SqlValue> min(SqlTable.Column column) {
+			return aggregate("MIN(" + column.getName() + ")", rs -> column.getType().read(rs, columns.length + 1));
+		}
+
+		/**
+		 * Determine the greatest value of a given column in each group.
+		 *
+		 * @param column
+		 * @return
+		 */
+		public Map<SqlTuple, SqlValue> max(SqlTable.Column column) {
+			return aggregate("MAX(" + column.getName() + ")", rs -> column.getType().read(rs, columns.length + 1));
+		}
+
+		/**
+		 * Determine the average of a given integer column in each group.
+		 *
+		 * @param column
+		 * @return
+		 */
+		public Map<SqlTuple, Double> avg(SqlTable.Column column) {
+			checkNumeric(column);
+			String c = column.getName();
+			int n = columns.length;
+			return aggregate("SUM(" + c + "), COUNT(" + c + ")",
+					rs -> (double) rs.getLong(n + 1) / rs.getLong(n + 2));
+		}
+
+		private <V> Map<SqlTuple, V> aggregate(String aggregate, Reader<V> reader) {
+			String grouping = "";
+			for (int i = 0; i != columns.length; ++i) {
+				grouping += (i == 0 ? "" : ", ") + columns[i].getName();
+			}
+			// Grouped queries are never divided, so there is only one result
+			return source.aggregate(grouping + ", " + aggregate, grouping, rs -> {
+				LinkedHashMap<SqlTuple, V> groups = new LinkedHashMap<>();
+				while (rs.next()) {
+					SqlValue[] key = new SqlValue[columns.length];
+					for (int i = 0; i != key.length; ++i) {
+						key[i] = columns[i].getType().read(rs, i + 1);
+					}
+					groups.put(new SqlTuple(key), reader.read(rs));
+				}
+				return groups;
+			}).get(0);
+		}
+	}
+
+	/**
+	 * Represents a SELECT query.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	public static class Select<S extends SqlRow> extends SqlQuery<S> {
+
+		/**
+		 * The table that this query is operating over.
+		 */
+		private final SqlTable<S> table;
+
+		public Select(SqlTable<S> table) {
+			this.table = table;
+		}
+
+		@Override
+		protected void compile(Template template) {
+			template.setCommand("SELECT " + table.getSelectList() + " FROM", table);
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return table;
+		}
+	}
+
+	/**
+	 * Represents the results of a given DELETE query.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	public static class Delete<S extends SqlRow> extends SqlQuery<S> {
+		/**
+		 * The table that this query is operating over.
+		 */
+		private final SqlTable<S> table;
+
+		public Delete(SqlTable<S> table) {
+			this.table = table;
+		}
+
+		@Override
+		protected void compile(Template template) {
+			template.setCommand("DELETE FROM", table);
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return table;
+		}
+	}
+
+	/**
+	 * Represents an UPDATE query, which sets one or more columns of every row
+	 * it applies to. Columns are set using <code>set()</code>, after which the
+	 * query can be refined using WHERE clauses.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	public static class Update<S extends SqlRow> extends SqlQuery<S> {
+		/**
+		 * The table that this query is operating over.
+		 */
+		private final SqlTable<S> table;
+		private final SqlTable.Column[] columns;
+		private final SqlValue[] values;
+
+		public Update(SqlTable<S> table) {
+			this(table, new SqlTable.Column[0], new SqlValue[0]);
+		}
+
+		private Update(SqlTable<S> table, SqlTable.Column[] columns, SqlValue[] values) {
+			this.table = table;
+			this.columns = columns;
+			this.values = values;
+		}
+
+		/**
+		 * Set a given named column to a given value. The value must be
+		 * appropriate for the type of the column, else an
+		 * IllegalArgumentException is thrown.
+		 *
+		 * @param columnName
+		 * @param value
+		 * @return
+		 */
+		public Update<S> set(String columnName, SqlValue value) {
+			return set(table.getColumn(columnName), value);
+		}
+
+		/**
+		 * Set a given column to a given value. The value must be appropriate
+		 * for the type of the column, else an IllegalArgumentException is
+		 * thrown.
+		 *
+		 * @param column
+		 * @param value
+		 * @return
+		 */
+		public Update<S> set(SqlTable.Column column, SqlValue value) {
+			if(!column.getType().isInstance(value)) {
+				throw new IllegalArgumentException("Invalid value for SET clause");
+			}
+			SqlTable.Column[] cs = Arrays.copyOf(columns, columns.length + 1);
+			SqlValue[] vs = Arrays.copyOf(values, values.length + 1);
+			cs[columns.length] = table.getColumn(table.indexOf(column));
+			vs[values.length] = value;
+			return new Update<>(table, cs, vs);
+		}
+
+		@Override
+		protected void compile(Template template) {
+			if(columns.length == 0) {
+				throw new IllegalArgumentException("Require at least one column for SET clause");
+			}
+			template.setCommand("UPDATE", table);
+			for(int i=0;i!=columns.length;++i) {
+				template.addAssignment(columns[i], values[i]);
+			}
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return table;
+		}
+	}
+
+	/**
+	 * Represents the results of a query which are refined by a given WHERE
+	 * clause.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	private static class Where<S extends SqlRow> extends SqlQuery<S> {
+		private final SqlQuery<S> source;
+		private final SqlTable.Column column;
+		private final Operator operator;
 		private final SqlValue value;
 
 		public Where(SqlQuery<S> source, SqlTable.Column column, Operator operator, SqlValue value) {
@@ -432,18 +1221,46 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 		}
 
 		@Override
-		protected String getQueryString() {
-			boolean needAND = source instanceof Where;
-			String qs = source.getQueryString();
-			if(needAND) {
-				qs += " AND ";
+		protected void compile(Template template) {
+			source.compile(template);
+			if (value == null && operator == Operator.Equal) {
+				template.addCondition(column.getName() + " IS NULL", column.getType());
+			} else if (value == null && operator == Operator.NotEqual) {
+				template.addCondition(column.getName() + " IS NOT NULL", column.getType());
 			} else {
-				qs += " WHERE ";
+				template.addCondition(column.getName() + operator.toString() + "?", column.getType(), value);
 			}
-			qs += column.getName();
-			qs += operator.toString();
-			qs += value.toString();
-			return qs;
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return source.getTable();
+		}
+	}
+
+	/**
+	 * Represents the results of a query which are refined by a given WHERE
+	 * ... IN clause.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	private static class WhereIn<S extends SqlRow> extends SqlQuery<S> {
+		private final SqlQuery<S> source;
+		private final SqlTable.Column column;
+		private final List<SqlValue> values;
+
+		public WhereIn(SqlQuery<S> source, SqlTable.Column column, List<SqlValue> values) {
+			this.source = source;
+			this.column = column;
+			this.values = values;
+		}
+
+		@Override
+		protected void compile(Template template) {
+			source.compile(template);
+			template.addInCondition(column, values);
 		}
 
 		@Override
@@ -475,70 +1292,544 @@ public abstract class SqlQuery<T extends SqlRow> implements Iterable<T> {
 		}
 
 		@Override
-		protected String getQueryString() {
-			String qs = source.getQueryString();
-			qs += " ORDER BY ";
+		protected void compile(Template template) {
+			source.compile(template);
+			// NOTE: the mode is only given for the final column, and hence
+			// applies only to that column.
 			for(int i=0;i!=columns.length;++i) {
-				SqlTable.Column col = columns[i];
-				if(i != 0) {
-					qs += ", ";
-				}
-				qs += col.getName();
-			}
-			if(mode == OrderByMode.ASC) {
-				qs += " ASC";
-			} else if(mode == OrderByMode.DESC) {
-				qs += " DESC";
+				OrderByMode m = (i + 1) == columns.length ? mode : OrderByMode.None;
+				template.addOrdering(columns[i], m);
 			}
-			return qs;
+		}
+	}
+
+	private static class Limit<S extends SqlRow> extends SqlQuery<S> {
+		private final SqlQuery<S> source;
+		private final long limit;
+
+		public Limit(SqlQuery<S> source, long limit) {
+			this.source = source;
+			this.limit = limit;
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return source.getTable();
+		}
+
+		@Override
+		protected void compile(Template template) {
+			source.compile(template);
+			template.setLimit(limit);
+		}
+	}
+
+	private static class Offset<S extends SqlRow> extends SqlQuery<S> {
+		private final SqlQuery<S> source;
+		private final long offset;
+
+		public Offset(SqlQuery<S> source, long offset) {
+			this.source = source;
+			this.offset = offset;
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return source.getTable();
+		}
+
+		@Override
+		protected void compile(Template template) {
+			source.compile(template);
+			template.setOffset(offset);
+		}
+	}
+
+	private static class After<S extends SqlRow> extends SqlQuery<S> {
+		private final SqlQuery<S> source;
+		private final SqlRow row;
+
+		public After(SqlQuery<S> source, SqlRow row) {
+			this.source = source;
+			this.row = row;
+		}
+
+		@Override
+		protected SqlTable<S> getTable() {
+			return source.getTable();
+		}
+
+		@Override
+		protected void compile(Template template) {
+			source.compile(template);
+			template.setAfter(row);
 		}
 	}
 
 	/**
-	 * The iterator acts as a go-between for the JDBC ResultSet and the SqlRow
-	 * values returned by this query.
+	 * A template is the compiled form of a query. This consists of the SQL text
+	 * with a placeholder for each value, along with the values themselves in
+	 * the order they should be bound. Clauses are accumulated separately and
+	 * only assembled into SQL at the end, which ensures e.g. that every WHERE
+	 * condition is joined correctly regardless of where it appears in the
+	 * chain.
 	 *
 	 * @author David J. Pearce
 	 *
-	 * @param <S>
 	 */
-	private static class Iterator<S extends SqlRow> implements java.util.Iterator<S> {
-		private final ResultSet data;
-		private final SqlTable<S> table;
+	protected static final class Template {
+		private String command;
+		private SqlTable<?> table;
+		private final ArrayList<String> conditions = new ArrayList<>();
+		private final ArrayList<SqlTable.Column> orderings = new ArrayList<>();
+		private final ArrayList<OrderByMode> modes = new ArrayList<>();
+		private final ArrayList<SqlValue> parameters = new ArrayList<>();
+		private final ArrayList<String> assignments = new ArrayList<>();
+		private final ArrayList<SqlValue> assigned = new ArrayList<>();
+		/**
+		 * The type of each value given for the SET and WHERE clauses, in the
+		 * order they are bound.
+		 */
+		private final ArrayList<SqlType> types = new ArrayList<>();
+		private SqlRow after;
+		private long limit = -1;
+		private long offset;
+		private String aggregate;
+		private String grouping;
+		/**
+		 * The largest IN condition of this template, which is divided between
+		 * several executions if the template has too many parameters.
+		 */
+		private InList in;
 
-		public Iterator(ResultSet data, SqlTable<S> table) {
-			this.data = data;
+		/**
+		 * Set the command (e.g. "SELECT * FROM") and the table it operates on.
+		 *
+		 * @param command
+		 * @param table
+		 */
+		public void setCommand(String command, SqlTable<?> table) {
+			this.command = command;
 			this.table = table;
 		}
 
-		@Override
-		public boolean hasNext() {
-			try {
-				return data.next();
-			} catch (SQLException e) {
-				throw new RuntimeException(e.getMessage(),e);
+		/**
+		 * Add an assignment to the SET clause of an UPDATE.
+		 *
+		 * @param column
+		 * @param value
+		 */
+		public void addAssignment(SqlTable.Column column, SqlValue value) {
+			assignments.add(column.getName() + "=?");
+			assigned.add(value);
+			types.add(assigned.size() - 1, column.getType());
+		}
+
+		/**
+		 * Add a condition to the WHERE clause, along with the values (of a
+		 * given type) for any placeholders it contains.
+		 *
+		 * @param condition
+		 * @param type
+		 * @param values
+		 */
+		public void addCondition(String condition, SqlType type, SqlValue... values) {
+			conditions.add(condition);
+			for (SqlValue value : values) {
+				parameters.add(value);
+				types.add(type);
 			}
 		}
 
-		@Override
-		public S next() {
-			try {
-				SqlValue[] row = new SqlValue[table.size()];
-				for (int i = 0; i != row.length; ++i) {
-					SqlTable.Column column = table.getColumn(i);
-					Object rowObject = data.getObject(i + 1);
-					row[i] = rowObject == null ? null : column.getType().fromObject(rowObject);
+		/**
+		 * Add an "IN" condition to the WHERE clause, which holds when a given
+		 * column has any one of the given values.
+		 *
+		 * @param column
+		 * @param values
+		 */
+		public void addInCondition(SqlTable.Column column, List<SqlValue> values) {
+			String name = column.getName();
+			if (in == null || values.size() > in.values.size()) {
+				in = new InList(conditions.size(), parameters.size(), name, values);
+			}
+			conditions.add(in(name, values.size()));
+			parameters.addAll(values);
+			types.addAll(Collections.nCopies(values.size(), column.getType()));
+		}
+
+		/**
+		 * Add a column to the ORDER BY clause.
+		 *
+		 * @param column
+		 * @param mode
+		 */
+		private void addOrdering(SqlTable.Column column, OrderByMode mode) {
+			orderings.add(column);
+			modes.add(mode);
+		}
+
+		/**
+		 * Restrict the results to those which follow a given row in the order
+		 * given by the ORDER BY clause.
+		 *
+		 * @param row
+		 */
+		public void setAfter(SqlRow row) {
+			this.after = row;
+		}
+
+		/**
+		 * Turn this template into an aggregate query, which computes the given
+		 * aggregate expressions over the results (e.g. "COUNT(*)") rather than
+		 * returning the results themselves. If grouping columns are given, then
+		 * one row is produced per group, ordered by those columns.
+		 *
+		 * @param aggregate
+		 * @param grouping
+		 *            The grouping columns (e.g. "a, b"), or null.
+		 */
+		public void setAggregate(String aggregate, String grouping) {
+			this.aggregate = aggregate;
+			this.grouping = grouping;
+		}
+
+		/**
+		 * Set the maximum number of results returned.
+		 *
+		 * @param limit
+		 */
+		public void setLimit(long limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * Set the number of results skipped before any are returned.
+		 *
+		 * @param offset
+		 */
+		public void setOffset(long offset) {
+			this.offset = offset;
+		}
+
+		/**
+		 * Get the SQL text for this template, where each value is represented
+		 * by a placeholder.
+		 *
+		 * @return
+		 */
+		public String getSql() {
+			if (aggregate == null) {
+				return getSql(command, true);
+			}
+			StringBuilder sql = new StringBuilder();
+			if (limit >= 0 || offset > 0) {
+				// The aggregate must be computed over the limited results,
+				// rather than the limit being applied to the aggregate.
+				sql.append("SELECT ").append(aggregate).append(" FROM (");
+				sql.append(getSql(command, true));
+				sql.append(") q");
+			} else {
+				// The ordering of results does not affect the aggregate
+				sql.append(getSql("SELECT " + aggregate + " FROM", false));
+			}
+			if (grouping != null) {
+				sql.append(" GROUP BY ").append(grouping);
+				sql.append(" ORDER BY ").append(grouping);
+			}
+			return sql.toString();
+		}
+
+		private String getSql(String command, boolean ordered) {
+			StringBuilder sql = new StringBuilder();
+			sql.append(command);
+			sql.append(' ');
+			sql.append(table.getName());
+			for (int i = 0; i != assignments.size(); ++i) {
+				sql.append(i == 0 ? " SET " : ", ");
+				sql.append(assignments.get(i));
+			}
+			for (int i = 0; i != conditions.size(); ++i) {
+				sql.append(i == 0 ? " WHERE " : " AND ");
+				sql.append(conditions.get(i));
+			}
+			if (after != null) {
+				sql.append(conditions.isEmpty() ? " WHERE " : " AND ");
+				appendKeyset(sql);
+			}
+			for (int i = 0; ordered && i != orderings.size(); ++i) {
+				sql.append(i == 0 ? " ORDER BY " : ", ");
+				sql.append(orderings.get(i).getName());
+				if (modes.get(i) == OrderByMode.ASC) {
+					sql.append(" ASC");
+				} else if (modes.get(i) == OrderByMode.DESC) {
+					sql.append(" DESC");
 				}
-				return table.newRowInstance(row);
-			} catch (SQLException e) {
-				throw new RuntimeException(e.getMessage(), e);
 			}
+			if (limit >= 0 || offset > 0) {
+				// Some databases (e.g. SQLite, MySQL) do not permit OFFSET
+				// without LIMIT, hence the (unbounded) limit is always given.
+				// Likewise, the offset is always given so that a plan can be
+				// executed for any page.
+				sql.append(" LIMIT ? OFFSET ?");
+			}
+			return sql.toString();
 		}
 
-		@Override
-		public void remove() {
-			// TODO Auto-generated method stub
+		/**
+		 * Get the values to be bound to the placeholders of this template, in
+		 * order.
+		 *
+		 * @return
+		 */
+		public List<SqlValue> getParameters() {
+			if (assigned.isEmpty() && after == null && limit < 0 && offset == 0) {
+				return Collections.unmodifiableList(parameters);
+			}
+			ArrayList<SqlValue> all = new ArrayList<>(assigned);
+			all.addAll(parameters);
+			if (after != null) {
+				SqlValue[] key = getKeyset();
+				if (isUniform()) {
+					Collections.addAll(all, key);
+				} else {
+					for (int i = 0; i != key.length; ++i) {
+						for (int j = 0; j <= i; ++j) {
+							all.add(key[j]);
+						}
+					}
+				}
+			}
+			if (limit >= 0 || offset > 0) {
+				all.add(SqlValue.Int(limit >= 0 ? limit : Long.MAX_VALUE));
+				all.add(SqlValue.Int(offset));
+			}
+			return Collections.unmodifiableList(all);
+		}
 
+		/**
+		 * Get the types of the values which may be varied when this template
+		 * is executed as a plan. These are the values given for the SET and
+		 * WHERE clauses, followed by the value of each ORDER BY column for the
+		 * "after" row, then the LIMIT and OFFSET (where present).
+		 *
+		 * @return
+		 */
+		public List<SqlType> getParameterTypes() {
+			ArrayList<SqlType> all = new ArrayList<>(types);
+			if (after != null) {
+				for (SqlTable.Column column : orderings) {
+					all.add(column.getType());
+				}
+			}
+			if (limit >= 0 || offset > 0) {
+				all.add(SqlType.BIGINT);
+				all.add(SqlType.BIGINT);
+			}
+			return Collections.unmodifiableList(all);
+		}
+
+		/**
+		 * Get, for each value returned by <code>getParameters()</code>, the
+		 * index of the value given by <code>getParameterTypes()</code> from
+		 * which it comes. These differ since the values of the "after" row may
+		 * be bound to several placeholders.
+		 *
+		 * @return
+		 */
+		public int[] getParameterSlots() {
+			int[] slots = new int[getParameters().size()];
+			int p = 0;
+			for (; p != types.size(); ++p) {
+				slots[p] = p;
+			}
+			int slot = types.size();
+			if (after != null) {
+				int n = orderings.size();
+				if (isUniform()) {
+					for (int i = 0; i != n; ++i) {
+						slots[p++] = slot + i;
+					}
+				} else {
+					for (int i = 0; i != n; ++i) {
+						for (int j = 0; j <= i; ++j) {
+							slots[p++] = slot + j;
+						}
+					}
+				}
+				slot += n;
+			}
+			if (limit >= 0 || offset > 0) {
+				slots[p++] = slot++;
+				slots[p++] = slot++;
+			}
+			return slots;
+		}
+
+		/**
+		 * Divide this template into several templates, each of which has at
+		 * most a given number of parameters, and whose results together give
+		 * those of this template. This is done by dividing the values of its
+		 * largest IN condition between them. Since the results of each are
+		 * obtained separately, this is not possible for templates whose
+		 * results are ordered, limited or grouped. An aggregate over all
+		 * results (e.g. a count) is computed for each template separately, and
+		 * it is for the caller to combine these.
+		 *
+		 * @param maxParameters
+		 * @return
+		 */
+		public List<Template> split(int maxParameters) {
+			int total = getParameters().size();
+			if (total <= maxParameters) {
+				return Collections.singletonList(this);
+			} else if (in == null) {
+				throw new IllegalArgumentException("Too many parameters for query");
+			} else if (limit >= 0 || offset > 0 || grouping != null || (aggregate == null && !orderings.isEmpty())) {
+				// NOTE: the ordering of results does not affect an aggregate
+				throw new IllegalArgumentException("Too many values in IN clause for ordered, limited or grouped query");
+			}
+			int n = in.values.size();
+			int chunk = maxParameters - (total - n);
+			if (chunk < 1) {
+				throw new IllegalArgumentException("Too many parameters for query");
+			}
+			ArrayList<Template> templates = new ArrayList<>();
+			for (int i = 0; i < n; i += chunk) {
+				List<SqlValue> values = in.values.subList(i, Math.min(n, i + chunk));
+				Template t = new Template();
+				t.command = command;
+				t.table = table;
+				t.aggregate = aggregate;
+				t.orderings.addAll(orderings);
+				t.modes.addAll(modes);
+				t.assignments.addAll(assignments);
+				t.assigned.addAll(assigned);
+				t.conditions.addAll(conditions);
+				t.conditions.set(in.condition, in(in.column, values.size()));
+				t.parameters.addAll(parameters.subList(0, in.parameter));
+				t.parameters.addAll(values);
+				t.parameters.addAll(parameters.subList(in.parameter + n, parameters.size()));
+				int k = assigned.size() + in.parameter;
+				t.types.addAll(types.subList(0, k));
+				t.types.addAll(types.subList(k, k + values.size()));
+				t.types.addAll(types.subList(k + n, types.size()));
+				t.after = after;
+				templates.add(t);
+			}
+			return templates;
+		}
+
+		private static String in(String column, int size) {
+			if (size == 0) {
+				// An empty IN list is not valid SQL
+				return "1 = 0";
+			}
+			StringBuilder sql = new StringBuilder(column);
+			sql.append(" IN (");
+			for (int i = 0; i != size; ++i) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			return sql.append(')').toString();
+		}
+
+		/**
+		 * Append the condition selecting those rows which follow the "after"
+		 * row. When every column is ordered in the same direction this is a
+		 * single row-value comparison (e.g. "(a, b) > (?, ?)"), which databases
+		 * can satisfy directly from an index on those columns. Otherwise, it is
+		 * expanded into the equivalent disjunction (e.g. "(a > ?) OR (a = ? AND
+		 * b < ?)").
+		 *
+		 * @param sql
+		 */
+		private void appendKeyset(StringBuilder sql) {
+			if (orderings.isEmpty()) {
+				throw new IllegalArgumentException("Require ORDER BY clause for keyset pagination");
+			}
+			if (isUniform()) {
+				String op = modes.get(0) == OrderByMode.DESC ? " < " : " > ";
+				StringBuilder lhs = new StringBuilder();
+				StringBuilder rhs = new StringBuilder();
+				for (int i = 0; i != orderings.size(); ++i) {
+					lhs.append(i == 0 ? "" : ", ").append(orderings.get(i).getName());
+					rhs.append(i == 0 ? "?" : ", ?");
+				}
+				if (orderings.size() == 1) {
+					sql.append(lhs).append(op).append(rhs);
+				} else {
+					sql.append('(').append(lhs).append(')').append(op).append('(').append(rhs).append(')');
+				}
+			} else {
+				sql.append('(');
+				for (int i = 0; i != orderings.size(); ++i) {
+					sql.append(i == 0 ? "(" : " OR (");
+					for (int j = 0; j < i; ++j) {
+						sql.append(orderings.get(j).getName()).append(" = ? AND ");
+					}
+					sql.append(orderings.get(i).getName());
+					sql.append(modes.get(i) == OrderByMode.DESC ? " < ?" : " > ?");
+					sql.append(')');
+				}
+				sql.append(')');
+			}
+		}
+
+		/**
+		 * Check whether every column of the ORDER BY clause is ordered in the
+		 * same direction.
+		 *
+		 * @return
+		 */
+		private boolean isUniform() {
+			boolean desc = modes.get(0) == OrderByMode.DESC;
+			for (OrderByMode mode : modes) {
+				if ((mode == OrderByMode.DESC) != desc) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Get the values of the "after" row for each column of the ORDER BY
+		 * clause.
+		 *
+		 * @return
+		 */
+		private SqlValue[] getKeyset() {
+			SqlValue[] key = new SqlValue[orderings.size()];
+			for (int i = 0; i != key.length; ++i) {
+				SqlValue value = after.get(table.indexOf(orderings.get(i)));
+				if (value == null) {
+					throw new IllegalArgumentException("Invalid NULL value for keyset pagination");
+				}
+				key[i] = value;
+			}
+			return key;
+		}
+
+		/**
+		 * Records the position of an IN condition within a template.
+		 */
+		private static final class InList {
+			/**
+			 * Index of the condition within the WHERE clause.
+			 */
+			private final int condition;
+			/**
+			 * Index of the first value of the condition within the parameters.
+			 */
+			private final int parameter;
+			private final String column;
+			private final List<SqlValue> values;
+
+			public InList(int condition, int parameter, String column, List<SqlValue> values) {
+				this.condition = condition;
+				this.parameter = parameter;
+				this.column = column;
+				this.values = values;
+			}
 		}
 	}
 }
@@ -0,0 +1,57 @@
+package jwebkit.sql;
+
+/**
+ * Receives an event as each SQL statement is started and finished by a
+ * database, allowing statements to be logged, timed or counted. A listener is
+ * installed via <code>SqlDatabase.setQueryListener()</code>, and is called on
+ * whichever thread executes the statement. Hence, a listener must be thread
+ * safe, and should do as little as possible since it runs on the path of
+ * every statement.
+ *
+ * A statement is identified by its SQL text, which contains a placeholder for
+ * each value rather than the values themselves. Thus, executions of the same
+ * statement with different values are reported with the same SQL.
+ *
+ * @author David J. Pearce
+ *
+ */
+public interface SqlQueryListener {
+	/**
+	 * A listener which ignores every event. This is the listener of a database
+	 * unless another is given.
+	 */
+	public static final SqlQueryListener NONE = new SqlQueryListener() {
+	};
+
+	/**
+	 * Called before a statement is executed.
+	 *
+	 * @param sql
+	 *            The SQL of the statement.
+	 * @param parameters
+	 *            The number of values bound to the statement.
+	 */
+	public default void started(String sql, int parameters) {
+	}
+
+	/**
+	 * Called once a statement has finished. For a query, this is once its
+	 * results have been closed, and so includes the time spent reading them.
+	 * For a batch, this is called once for each batch executed.
+	 *
+	 * @param sql
+	 *            The SQL of the statement.
+	 * @param parameters
+	 *            The number of values bound to the statement.
+	 * @param rows
+	 *            The number of rows returned or affected, or -1 if this is
+	 *            not known.
+	 * @param nanos
+	 *            The time (in nanoseconds) taken by the statement.
+	 * @param failure
+	 *            The exception raised by the statement, or null if it
+	 *            succeeded.
+	 */
+	public default void finished(String sql, int parameters, long rows, long nanos, Exception failure) {
+	}
+}
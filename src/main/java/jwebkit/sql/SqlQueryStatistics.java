@@ -0,0 +1,293 @@
+package jwebkit.sql;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A query listener which accumulates statistics for each distinct statement
+ * executed, including a histogram of its latencies. This allows the
+ * statements which dominate the time spent in the database to be identified.
+ * Statements are grouped by their fingerprint, which is their SQL with any
+ * list of placeholders collapsed to one (e.g. "id IN (?, ?, ?)" becomes "id IN
+ * (?, ...)"), such that e.g. IN queries with differing numbers of values are
+ * counted together. Recording an execution takes no locks and (once a
+ * statement has been seen) allocates nothing.
+ *
+ * Latencies are recorded in buckets whose width grows with their magnitude,
+ * such that each percentile is accurate to within 12.5% (and the maximum is
+ * exact).
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlQueryStatistics implements SqlQueryListener {
+	/**
+	 * The number of bits of each latency kept by its bucket.
+	 */
+	private static final int PRECISION = 3;
+	private static final int BUCKETS = (64 - PRECISION) << PRECISION;
+
+	/**
+	 * The statistics for each distinct SQL statement seen. Statements with the
+	 * same fingerprint share the same statistics.
+	 */
+	private final ConcurrentHashMap<String, Summary> statements = new ConcurrentHashMap<>();
+
+	/**
+	 * The statistics for each fingerprint seen.
+	 */
+	private final ConcurrentHashMap<String, Summary> fingerprints = new ConcurrentHashMap<>();
+
+	@Override
+	public void finished(String sql, int parameters, long rows, long nanos, Exception failure) {
+		Summary summary = statements.get(sql);
+		if (summary == null) {
+			summary = fingerprints.computeIfAbsent(fingerprint(sql), Summary::new);
+			statements.putIfAbsent(sql, summary);
+		}
+		summary.record(rows, nanos, failure != null);
+	}
+
+	/**
+	 * Get the statistics for every fingerprint seen, ordered by the total time
+	 * spent executing them (largest first).
+	 *
+	 * @return
+	 */
+	public List<Summary> getSummaries() {
+		ArrayList<Summary> summaries = new ArrayList<>(fingerprints.values());
+		summaries.sort(Comparator.comparingLong(Summary::getTotalTime).reversed());
+		return summaries;
+	}
+
+	/**
+	 * Get the statistics for a given statement, or null if it has not been
+	 * seen.
+	 *
+	 * @param sql
+	 * @return
+	 */
+	public Summary getSummary(String sql) {
+		Summary summary = statements.get(sql);
+		return summary != null ? summary : fingerprints.get(fingerprint(sql));
+	}
+
+	/**
+	 * Discard all statistics accumulated so far.
+	 */
+	public void clear() {
+		statements.clear();
+		fingerprints.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder r = new StringBuilder();
+		for (Summary s : getSummaries()) {
+			r.append(s).append('\n');
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Determine the fingerprint of a given SQL statement, by collapsing each
+	 * list of two or more placeholders into one.
+	 *
+	 * @param sql
+	 * @return
+	 */
+	static String fingerprint(String sql) {
+		StringBuilder r = new StringBuilder(sql.length());
+		int i = 0;
+		while (i < sql.length()) {
+			char c = sql.charAt(i++);
+			r.append(c);
+			if (c == '?') {
+				// Skip any further placeholders in the same list
+				int j = i;
+				boolean collapsed = false;
+				while (true) {
+					int k = j;
+					while (k < sql.length() && sql.charAt(k) == ' ') {
+						k++;
+					}
+					if (k < sql.length() && sql.charAt(k) == ',') {
+						k++;
+						while (k < sql.length() && sql.charAt(k) == ' ') {
+							k++;
+						}
+						if (k < sql.length() && sql.charAt(k) == '?') {
+							j = k + 1;
+							collapsed = true;
+							continue;
+						}
+					}
+					break;
+				}
+				if (collapsed) {
+					r.append(", ...");
+					i = j;
+				}
+			}
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Get the bucket which records a given latency.
+	 *
+	 * @param nanos
+	 * @return
+	 */
+	private static int bucket(long nanos) {
+		if (nanos < (1 << PRECISION)) {
+			return (int) Math.max(0, nanos);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exponent - PRECISION;
+		int mantissa = (int) (nanos >>> shift) & ((1 << PRECISION) - 1);
+		return ((shift + 1) << PRECISION) + mantissa;
+	}
+
+	/**
+	 * Get the largest latency recorded by a given bucket.
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	private static long limit(int bucket) {
+		if (bucket < (1 << PRECISION)) {
+			return bucket;
+		}
+		int shift = (bucket >>> PRECISION) - 1;
+		long mantissa = (bucket & ((1 << PRECISION) - 1)) | (1 << PRECISION);
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * The statistics accumulated for a given fingerprint.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Summary {
+		private final String fingerprint;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder rows = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		private Summary(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		private void record(long rows, long nanos, boolean failed) {
+			count.increment();
+			if (failed) {
+				failures.increment();
+			}
+			if (rows > 0) {
+				this.rows.add(rows);
+			}
+			total.add(nanos);
+			histogram.incrementAndGet(bucket(nanos));
+			long m = max.get();
+			while (nanos > m && !max.compareAndSet(m, nanos)) {
+				m = max.get();
+			}
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Get the number of executions recorded.
+		 *
+		 * @return
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * Get the number of executions which failed.
+		 *
+		 * @return
+		 */
+		public long getFailureCount() {
+			return failures.sum();
+		}
+
+		/**
+		 * Get the total number of rows returned or affected, where known.
+		 *
+		 * @return
+		 */
+		public long getRowCount() {
+			return rows.sum();
+		}
+
+		/**
+		 * Get the total time (in nanoseconds) spent in all executions.
+		 *
+		 * @return
+		 */
+		public long getTotalTime() {
+			return total.sum();
+		}
+
+		/**
+		 * Get the longest time (in nanoseconds) taken by any execution.
+		 *
+		 * @return
+		 */
+		public long getMaxTime() {
+			return max.get();
+		}
+
+		/**
+		 * Get the time (in nanoseconds) within which a given fraction of
+		 * executions completed. For example, <code>getPercentile(0.99)</code>
+		 * gives the 99th percentile latency.
+		 *
+		 * @param fraction
+		 *            Between 0 and 1.
+		 * @return
+		 */
+		public long getPercentile(double fraction) {
+			if (fraction < 0 || fraction > 1) {
+				throw new IllegalArgumentException("Invalid percentile");
+			}
+			long[] counts = new long[BUCKETS];
+			long n = 0;
+			for (int i = 0; i != BUCKETS; ++i) {
+				counts[i] = histogram.get(i);
+				n += counts[i];
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * n));
+			long seen = 0;
+			for (int i = 0; i != BUCKETS; ++i) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(limit(i), getMaxTime());
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s count=%d failed=%d rows=%d total=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+					fingerprint, getCount(), getFailureCount(), getRowCount(), getTotalTime() / 1e6,
+					getPercentile(0.5) / 1e6, getPercentile(0.99) / 1e6, getMaxTime() / 1e6);
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package jwebkit.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * A cache of query results, keyed on the compiled SQL of a query along with
+ * its parameters and the table (or projection) decoding its rows. Every entry
+ * records the table it was drawn from, and is discarded whenever that table
+ * is modified through the owning database. The cache is bounded by the
+ * (estimated) memory occupied by its rows, evicting the least recently used
+ * entries first, and entries may also expire after a given time. When several threads miss on the same query at once, only one
+ * of them executes it whilst the others wait for its result.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlResultCache {
+	private final long maxBytes;
+	private final long timeToLive;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The keys of the cached entries drawn from each table.
+	 */
+	private final HashMap<String, Set<Key>> dependents = new HashMap<>();
+
+	/**
+	 * The number of times each table has been invalidated. A result is only
+	 * cached if its table was not invalidated whilst it was being loaded.
+	 */
+	private final HashMap<String, Long> versions = new HashMap<>();
+
+	/**
+	 * The queries currently being loaded, which later arrivals wait on.
+	 */
+	private final HashMap<Key, CompletableFuture<List<?>>> loading = new HashMap<>();
+
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long loads;
+	private long evictions;
+
+	/**
+	 * Construct a result cache.
+	 *
+	 * @param maxBytes
+	 *            Approximate upper bound on the memory occupied by cached rows.
+	 * @param timeToLive
+	 *            Milliseconds for which a result remains valid, or zero for no
+	 *            limit.
+	 */
+	public SqlResultCache(long maxBytes, long timeToLive) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Invalid result cache size");
+		} else if (timeToLive < 0) {
+			throw new IllegalArgumentException("Invalid result cache time to live");
+		}
+		this.maxBytes = maxBytes;
+		this.timeToLive = timeToLive * 1000000;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the estimated memory (in bytes) occupied by the cached rows.
+	 *
+	 * @return
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of times a query was actually executed on a miss. This
+	 * is lower than the miss count when concurrent misses are coalesced.
+	 *
+	 * @return
+	 */
+	public synchronized long getLoadCount() {
+		return loads;
+	}
+
+	/**
+	 * Get the number of entries removed because the cache was full or because
+	 * they had expired. Entries removed by invalidation are not counted.
+	 *
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Remove all entries from this cache.
+	 */
+	public synchronized void clear() {
+		for (String table : dependents.keySet()) {
+			versions.merge(table, 1L, Long::sum);
+		}
+		entries.clear();
+		dependents.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Get the results of a given query, using the given loader to execute it
+	 * if they are not cached. The returned list is unmodifiable.
+	 *
+	 * @param source
+	 *            The table (or projection) decoding the rows of the query.
+	 *            Projections of the same columns into different row types
+	 *            produce the same SQL, and so must be kept apart.
+	 * @param sql
+	 * @param parameters
+	 * @param loader
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	<T extends SqlRow> List<T> get(SqlTable<T> source, String sql, List<SqlValue> parameters,
+			Supplier<List<T>> loader) {
+		String table = source.getName();
+		Key key = new Key(source, sql, parameters);
+		CompletableFuture<List<?>> future;
+		boolean owner = false;
+		long version = 0;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (timeToLive == 0 || System.nanoTime() - entry.loaded < timeToLive) {
+					hits++;
+					return (List<T>) entry.rows;
+				}
+				remove(key);
+				evictions++;
+			}
+			misses++;
+			future = loading.get(key);
+			if (future == null) {
+				future = new CompletableFuture<>();
+				loading.put(key, future);
+				owner = true;
+				version = versions.getOrDefault(table, 0L);
+				loads++;
+			}
+		}
+		if (!owner) {
+			// Someone else is already loading this query
+			return (List<T>) await(future);
+		}
+		try {
+			long loaded = System.nanoTime();
+			List<T> rows = Collections.unmodifiableList(new ArrayList<>(loader.get()));
+			synchronized (this) {
+				loading.remove(key);
+				if (version == versions.getOrDefault(table, 0L)) {
+					Entry entry = new Entry(table, rows, estimate(rows), loaded);
+					if (entry.bytes <= maxBytes) {
+						entries.put(key, entry);
+						dependents.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+						bytes += entry.bytes;
+						evict();
+					}
+				}
+			}
+			future.complete(rows);
+			return rows;
+		} catch (RuntimeException | Error e) {
+			synchronized (this) {
+				loading.remove(key);
+			}
+			future.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Discard all entries drawn from a given table.
+	 *
+	 * @param table
+	 */
+	synchronized void invalidate(String table) {
+		versions.merge(table, 1L, Long::sum);
+		Set<Key> keys = dependents.remove(table);
+		if (keys != null) {
+			for (Key key : keys) {
+				Entry entry = entries.remove(key);
+				bytes -= entry.bytes;
+			}
+		}
+	}
+
+	private void remove(Key key) {
+		Entry entry = entries.remove(key);
+		bytes -= entry.bytes;
+		Set<Key> keys = dependents.get(entry.table);
+		keys.remove(key);
+		if (keys.isEmpty()) {
+			dependents.remove(entry.table);
+		}
+	}
+
+	private void evict() {
+		while (bytes > maxBytes) {
+			// Least recently used entries are first
+			remove(entries.keySet().iterator().next());
+			evictions++;
+		}
+	}
+
+	private static List<?> await(CompletableFuture<List<?>> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Estimate the memory occupied by a list of rows. This is necessarily
+	 * rough, but is sufficient for bounding the size of the cache.
+	 *
+	 * @param rows
+	 * @return
+	 */
+	private static long estimate(List<? extends SqlRow> rows) {
+		long total = 16 + 4L * rows.size();
+		for (SqlRow row : rows) {
+			total += 32 + 8L * row.size();
+			for (int i = 0; i != row.size(); ++i) {
+				SqlValue value = row.get(i);
+				if (value instanceof SqlValue.Text) {
+					total += 40 + ((SqlValue.Text) value).asString().length();
+				} else if (value != null) {
+					total += 32;
+				}
+			}
+		}
+		return total;
+	}
+
+	private static final class Key {
+		private final SqlTable<?> source;
+		private final String sql;
+		private final List<SqlValue> parameters;
+		private final int hash;
+
+		public Key(SqlTable<?> source, String sql, List<SqlValue> parameters) {
+			this.source = source;
+			this.sql = sql;
+			this.parameters = new ArrayList<>(parameters);
+			this.hash = (System.identityHashCode(source) * 31 + sql.hashCode()) * 31 + this.parameters.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return hash == k.hash && source == k.source && sql.equals(k.sql) && parameters.equals(k.parameters);
+			}
+			return false;
+		}
+	}
+
+	private static final class Entry {
+		private final String table;
+		private final List<?> rows;
+		private final long bytes;
+		private final long loaded;
+
+		public Entry(String table, List<?> rows, long bytes, long loaded) {
+			this.table = table;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.loaded = loaded;
+		}
+	}
+}
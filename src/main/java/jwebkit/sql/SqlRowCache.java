@@ -0,0 +1,162 @@
+package jwebkit.sql;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A read-through cache of rows for a single table, keyed on primary key. The
+ * cache holds at most a given number of rows, evicting the least recently used
+ * first, and (optionally) discards rows once they reach a given age. The
+ * owning table invalidates entries whenever it is modified through this
+ * library. Modifications made by other means (e.g. another process) are only
+ * seen once the affected entries expire.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+public final class SqlRowCache<T extends SqlRow> {
+	private final int maxSize;
+	private final long timeToLive;
+	private final LinkedHashMap<List<SqlValue>, Entry<T>> entries;
+
+	/**
+	 * Incremented on every invalidation. A row loaded from the database is
+	 * only cached if no invalidation occurred whilst it was being loaded, since
+	 * otherwise it may already be stale.
+	 */
+	private long version;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Construct a row cache.
+	 *
+	 * @param maxSize
+	 *            Maximum number of rows held.
+	 * @param timeToLive
+	 *            Milliseconds for which a row remains valid, or zero for no
+	 *            limit.
+	 */
+	public SqlRowCache(int maxSize, long timeToLive) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Invalid row cache size");
+		} else if (timeToLive < 0) {
+			throw new IllegalArgumentException("Invalid row cache time to live");
+		}
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive * 1000000;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of rows removed because the cache was full or because
+	 * they had expired. Rows removed by invalidation are not counted.
+	 *
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Get the fraction of lookups which were satisfied from the cache.
+	 *
+	 * @return
+	 */
+	public synchronized double getHitRatio() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Get the row with a given key, loading it using the given loader if it is
+	 * not cached. Rows which do not exist (i.e. for which the loader returns
+	 * null) are not cached.
+	 *
+	 * @param key
+	 * @param loader
+	 * @return
+	 */
+	T get(List<SqlValue> key, Supplier<T> loader) {
+		long v;
+		synchronized (this) {
+			Entry<T> entry = entries.get(key);
+			if (entry != null) {
+				if (timeToLive == 0 || System.nanoTime() - entry.loaded < timeToLive) {
+					hits++;
+					return entry.row;
+				}
+				entries.remove(key);
+				evictions++;
+			}
+			misses++;
+			v = version;
+		}
+		long loaded = System.nanoTime();
+		T row = loader.get();
+		if (row != null) {
+			synchronized (this) {
+				if (v == version) {
+					entries.put(key, new Entry<>(row, loaded));
+					evict();
+				}
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Remove the row with a given key from this cache.
+	 *
+	 * @param key
+	 */
+	synchronized void invalidate(List<SqlValue> key) {
+		version++;
+		entries.remove(key);
+	}
+
+	/**
+	 * Remove all rows from this cache.
+	 */
+	public synchronized void clear() {
+		version++;
+		entries.clear();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<List<SqlValue>, Entry<T>>> iterator = entries.entrySet().iterator();
+		while (entries.size() > maxSize) {
+			iterator.next();
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	private static final class Entry<T> {
+		private final T row;
+		private final long loaded;
+
+		public Entry(T row, long loaded) {
+			this.row = row;
+			this.loaded = loaded;
+		}
+	}
+}
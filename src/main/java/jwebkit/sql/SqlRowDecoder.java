@@ -0,0 +1,79 @@
+package jwebkit.sql;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Decodes rows of a ResultSet into instances of a given row class. A decoder
+ * resolves everything which does not depend on the row itself (i.e. the type
+ * of each column and the row class constructor) once, when it is constructed,
+ * leaving only the typed JDBC reads and the construction itself for each row.
+ * Since values read from the database are trusted to match the schema, they
+ * are not validated against their column types.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+final class SqlRowDecoder<T extends SqlRow> {
+	private final SqlType[] types;
+	private final Constructor<T> constructor;
+
+	public SqlRowDecoder(SqlType[] types, Constructor<T> constructor) {
+		this.types = types;
+		this.constructor = constructor;
+	}
+
+	/**
+	 * Get the number of columns read by this decoder.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return types.length;
+	}
+
+	/**
+	 * Decode the current row of a given ResultSet.
+	 *
+	 * @param rs
+	 * @return
+	 * @throws SQLException
+	 */
+	public T decode(ResultSet rs) throws SQLException {
+		return newInstance(read(rs));
+	}
+
+	/**
+	 * Read the values of the current row of a given ResultSet, without
+	 * constructing a row instance from them.
+	 *
+	 * @param rs
+	 * @return
+	 * @throws SQLException
+	 */
+	public SqlValue[] read(ResultSet rs) throws SQLException {
+		SqlValue[] row = new SqlValue[types.length];
+		for (int i = 0; i != row.length; ++i) {
+			row[i] = types[i].read(rs, i + 1);
+		}
+		return row;
+	}
+
+	/**
+	 * Construct a row instance from a given set of values, without checking
+	 * them against their column types.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public T newInstance(SqlValue[] row) {
+		try {
+			return constructor.newInstance(new Object[] { row });
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package jwebkit.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
+
+/**
+ * Records the statements executed by a database which take longer than a
+ * given threshold, as installed via <code>SqlDatabase.setSlowQueryLog()</code>.
+ * Only the most recent entries are kept, in a fixed size ring buffer, so that
+ * the log can be left enabled in production and inspected as needed (e.g.
+ * from an administration page).
+ *
+ * Optionally, the database is asked how it executes each slow statement
+ * (using EXPLAIN, where the dialect supports it). This is done once per
+ * statement fingerprint, in the background, and the resulting plan is then
+ * shared by every entry with that fingerprint. Since the values bound to a
+ * statement may be sensitive, they can be redacted from the log; they are
+ * still used to obtain the plan, but are not retained.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlSlowQueryLog {
+	private final long threshold;
+	private final boolean redact;
+	private final boolean explain;
+	private final AtomicReferenceArray<Entry> entries;
+	/**
+	 * The total number of entries ever recorded, the remainder of which (by
+	 * the capacity) gives the slot for the next entry.
+	 */
+	private final AtomicLong count = new AtomicLong();
+	/**
+	 * The plan obtained for each fingerprint, or the reason no plan could be
+	 * obtained.
+	 */
+	private final ConcurrentHashMap<String, String> plans = new ConcurrentHashMap<>();
+
+	/**
+	 * Construct a slow query log.
+	 *
+	 * @param threshold
+	 *            The time (in milliseconds) a statement must take to be
+	 *            recorded.
+	 * @param capacity
+	 *            The number of entries kept.
+	 * @param redact
+	 *            Whether the values bound to each statement are omitted.
+	 * @param explain
+	 *            Whether the plan for each statement is obtained.
+	 */
+	public SqlSlowQueryLog(long threshold, int capacity, boolean redact, boolean explain) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Invalid slow query threshold");
+		} else if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid slow query log capacity");
+		}
+		this.threshold = threshold * 1000000;
+		this.redact = redact;
+		this.explain = explain;
+		this.entries = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * Get the time (in nanoseconds) a statement must take to be recorded.
+	 *
+	 * @return
+	 */
+	public long getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Get the total number of statements recorded, including those whose
+	 * entries are no longer kept.
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the entries currently kept, most recent first.
+	 *
+	 * @return
+	 */
+	public List<Entry> getEntries() {
+		int capacity = entries.length();
+		long end = count.get();
+		ArrayList<Entry> r = new ArrayList<>();
+		for (long i = end - 1; i >= 0 && i >= end - capacity; --i) {
+			Entry e = entries.get((int) (i % capacity));
+			// An entry may be missing if it is still being recorded
+			if (e != null) {
+				r.add(e);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Discard every entry currently kept, and every plan obtained.
+	 */
+	public void clear() {
+		for (int i = 0; i != entries.length(); ++i) {
+			entries.set(i, null);
+		}
+		plans.clear();
+	}
+
+	/**
+	 * Record a given statement which took too long.
+	 *
+	 * @param database
+	 *            The database on which the statement was executed.
+	 * @param sql
+	 * @param parameters
+	 *            The values bound to the statement, or null if these are not
+	 *            available.
+	 * @param rows
+	 * @param nanos
+	 * @param failure
+	 */
+	void record(SqlDatabase database, String sql, List<SqlValue> parameters, long rows, long nanos,
+			Exception failure) {
+		String fingerprint = SqlQueryStatistics.fingerprint(sql);
+		List<SqlValue> values = redact || parameters == null ? null
+				: Collections.unmodifiableList(new ArrayList<>(parameters));
+		Entry entry = new Entry(fingerprint, values, rows, nanos, failure == null ? null : failure.toString());
+		long n = count.getAndIncrement();
+		entries.set((int) (n % entries.length()), entry);
+		if (explain && parameters != null && isExplainable(sql) && plans.putIfAbsent(fingerprint, "") == null) {
+			// Obtain the plan in the background, rather than on the thread
+			// executing the statement (which may still hold a connection).
+			List<SqlValue> bound = new ArrayList<>(parameters);
+			database.getExecutor().execute(() -> plans.put(fingerprint, explain(database, sql, bound)));
+		}
+	}
+
+	/**
+	 * Check whether a given statement is one for which a plan is useful, which
+	 * are those which find rows (rather than e.g. creating tables).
+	 *
+	 * @param sql
+	 * @return
+	 */
+	private static boolean isExplainable(String sql) {
+		return sql.regionMatches(true, 0, "SELECT ", 0, 7) || sql.regionMatches(true, 0, "UPDATE ", 0, 7)
+				|| sql.regionMatches(true, 0, "DELETE ", 0, 7);
+	}
+
+	/**
+	 * Ask the database how it would execute a given statement.
+	 *
+	 * @param database
+	 * @param sql
+	 * @param parameters
+	 * @return The plan, or the reason it could not be obtained.
+	 */
+	private static String explain(SqlDatabase database, String sql, List<SqlValue> parameters) {
+		try {
+			String explain = database.getDialect().explainSql(sql);
+			if (explain == null) {
+				return "EXPLAIN not supported";
+			}
+			PooledConnection connection = database.acquire();
+			try (PreparedStatement stmt = connection.getConnection().prepareStatement(explain)) {
+				SqlDatabase.bind(stmt, parameters);
+				StringBuilder plan = new StringBuilder();
+				try (ResultSet rs = stmt.executeQuery()) {
+					ResultSetMetaData meta = rs.getMetaData();
+					while (rs.next()) {
+						for (int i = 1; i <= meta.getColumnCount(); ++i) {
+							plan.append(i == 1 ? "" : "\t").append(rs.getString(i));
+						}
+						plan.append('\n');
+					}
+				}
+				return plan.toString();
+			} finally {
+				database.release(connection);
+			}
+		} catch (SQLException | RuntimeException e) {
+			return "EXPLAIN failed: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Records a single execution of a slow statement.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public final class Entry {
+		private final long timestamp = System.currentTimeMillis();
+		private final String fingerprint;
+		private final List<SqlValue> parameters;
+		private final long rows;
+		private final long time;
+		private final String failure;
+
+		private Entry(String fingerprint, List<SqlValue> parameters, long rows, long time, String failure) {
+			this.fingerprint = fingerprint;
+			this.parameters = parameters;
+			this.rows = rows;
+			this.time = time;
+			this.failure = failure;
+		}
+
+		/**
+		 * Get the time at which the statement finished, in milliseconds since
+		 * the epoch.
+		 *
+		 * @return
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Get the fingerprint of the statement, which is its SQL with any
+		 * list of placeholders collapsed to one.
+		 *
+		 * @return
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Get the values bound to the statement, or null if these were
+		 * redacted or not available.
+		 *
+		 * @return
+		 */
+		public List<SqlValue> getParameters() {
+			return parameters;
+		}
+
+		/**
+		 * Get the number of rows returned or affected, or -1 if this is not
+		 * known.
+		 *
+		 * @return
+		 */
+		public long getRowCount() {
+			return rows;
+		}
+
+		/**
+		 * Get the time (in nanoseconds) taken by the statement.
+		 *
+		 * @return
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get a description of the exception raised by the statement, or null
+		 * if it succeeded.
+		 *
+		 * @return
+		 */
+		public String getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Get the plan by which the database executes this statement, or null
+		 * if this has not (yet) been obtained.
+		 *
+		 * @return
+		 */
+		public String getPlan() {
+			String plan = plans.get(fingerprint);
+			return plan == null || plan.isEmpty() ? null : plan;
+		}
+
+		@Override
+		public String toString() {
+			String r = String.format("%.3fms rows=%d %s", time / 1e6, rows, fingerprint);
+			if (parameters != null) {
+				r += " " + parameters;
+			}
+			if (failure != null) {
+				r += " failed: " + failure;
+			}
+			return r;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package jwebkit.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits the results of a query for parallel processing. Since a ResultSet
+ * can only be read by one thread at a time, splitting works by reading the
+ * next block of rows from the cursor as raw values, and handing that block
+ * off. The construction of row instances, along with any downstream work
+ * performed on them, then proceeds on whichever thread processes the block.
+ * Blocks grow in size as splitting continues, so that small results incur
+ * little overhead whilst large results are divided into reasonably sized
+ * pieces of work.
+ *
+ * Until it is first split, the cursor's connection remains held by the thread
+ * which executed the query. Hence, when consumed sequentially, any database
+ * operations performed on each row reuse that connection (rather than waiting
+ * on the pool for another). Once split, the cursor may be advanced and closed
+ * by other threads and so the connection is detached from the original thread.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+final class SqlSpliterator<T extends SqlRow> implements Spliterator<T> {
+	/**
+	 * The number of rows added to each successive block.
+	 */
+	private static final int BLOCK_UNIT = 1024;
+
+	/**
+	 * The maximum number of rows in a block.
+	 */
+	private static final int MAX_BLOCK = 1 << 16;
+
+	private final SqlCursor<T> cursor;
+	private final SqlRowDecoder<T> decoder;
+	private int block;
+	private boolean detached;
+
+	public SqlSpliterator(SqlCursor<T> cursor, SqlRowDecoder<T> decoder) {
+		this.cursor = cursor;
+		this.decoder = decoder;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if (cursor.hasNext()) {
+			action.accept(cursor.next());
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super T> action) {
+		while (cursor.hasNext()) {
+			action.accept(cursor.next());
+		}
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+		if (!detached) {
+			// This is the first split, which happens on the thread which
+			// executed the query. From now on, the cursor may be advanced (and
+			// closed) by other threads.
+			cursor.detach();
+			detached = true;
+		}
+		int n = Math.min(block + BLOCK_UNIT, MAX_BLOCK);
+		SqlValue[][] rows = new SqlValue[n][];
+		int count = 0;
+		try {
+			ResultSet rs;
+			while (count < n && (rs = cursor.advance()) != null) {
+				rows[count++] = decoder.read(rs);
+			}
+		} catch (SQLException e) {
+			cursor.close();
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		if (count == 0) {
+			return null;
+		}
+		block = n;
+		return new Block<>(rows, 0, count, decoder);
+	}
+
+	@Override
+	public long estimateSize() {
+		return cursor.isClosed() ? 0 : Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * Release the underlying cursor, if it is not already closed.
+	 */
+	public void close() {
+		cursor.close();
+	}
+
+	/**
+	 * A block of rows which have already been read from the database, but
+	 * from which row instances have not yet been constructed.
+	 *
+	 * @param <T>
+	 */
+	private static final class Block<T extends SqlRow> implements Spliterator<T> {
+		private final SqlValue[][] rows;
+		private final SqlRowDecoder<T> decoder;
+		private int index;
+		private final int fence;
+
+		public Block(SqlValue[][] rows, int index, int fence, SqlRowDecoder<T> decoder) {
+			this.rows = rows;
+			this.index = index;
+			this.fence = fence;
+			this.decoder = decoder;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (index < fence) {
+				SqlValue[] row = rows[index];
+				// Release the raw values once they are consumed
+				rows[index++] = null;
+				action.accept(decoder.newInstance(row));
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			while (tryAdvance(action)) {
+			}
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			int mid = (index + fence) >>> 1;
+			if (mid <= index) {
+				return null;
+			}
+			Block<T> prefix = new Block<>(rows, index, mid, decoder);
+			index = mid;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return fence - index;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | SIZED | SUBSIZED | IMMUTABLE;
+		}
+	}
+}
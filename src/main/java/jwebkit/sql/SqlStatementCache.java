@@ -0,0 +1,166 @@
+package jwebkit.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of prepared statements for a single JDBC connection. Entries
+ * are keyed by their SQL text and evicted in least-recently-used order, with
+ * evicted statements being closed immediately. A statement is removed from the
+ * cache whilst it is in use, and returned to it afterwards. This means the
+ * same SQL can be executed concurrently (e.g. by nested iteration) without two
+ * users ever sharing one statement. Statements are prepared as forward-only
+ * and read-only, which allows drivers to stream their results.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlStatementCache {
+	/**
+	 * The default number of statements retained per connection.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * The connection on which all cached statements were prepared.
+	 */
+	private final Connection connection;
+
+	/**
+	 * The maximum number of idle statements retained by this cache.
+	 */
+	private final int capacity;
+
+	/**
+	 * The idle statements, ordered from least to most recently used.
+	 */
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public SqlStatementCache(Connection connection, int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Invalid statement cache capacity");
+		}
+		this.connection = connection;
+		this.capacity = capacity;
+		this.statements = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Get the maximum number of idle statements retained by this cache.
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of idle statements currently held in this cache.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return statements.size();
+	}
+
+	/**
+	 * Get the number of times a statement was reused from this cache.
+	 *
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of times a statement had to be freshly prepared.
+	 *
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of statements closed to make room for others.
+	 *
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Obtain a prepared statement for the given SQL text, either by taking it
+	 * from the cache or by preparing it afresh. The statement must be handed
+	 * back via <code>release()</code> once it is no longer in use.
+	 *
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	synchronized PreparedStatement acquire(String sql) throws SQLException {
+		PreparedStatement stmt = statements.remove(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			hits++;
+			return stmt;
+		}
+		misses++;
+		return connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+
+	/**
+	 * Return a statement previously obtained from <code>acquire()</code>. If an
+	 * idle statement for the same SQL is already cached, or the cache is
+	 * disabled, then this one is simply closed.
+	 *
+	 * @param sql
+	 * @param stmt
+	 * @throws SQLException
+	 */
+	synchronized void release(String sql, PreparedStatement stmt) throws SQLException {
+		if (capacity == 0 || stmt.isClosed() || statements.containsKey(sql)) {
+			stmt.close();
+			return;
+		}
+		stmt.clearParameters();
+		statements.put(sql, stmt);
+		// Evict least recently used statements until we are back in bounds
+		Iterator<Map.Entry<String, PreparedStatement>> iterator = statements.entrySet().iterator();
+		while (statements.size() > capacity) {
+			PreparedStatement eldest = iterator.next().getValue();
+			iterator.remove();
+			evictions++;
+			eldest.close();
+		}
+	}
+
+	/**
+	 * Close all idle statements held in this cache.
+	 *
+	 * @throws SQLException
+	 */
+	synchronized void clear() throws SQLException {
+		SQLException error = null;
+		for (PreparedStatement stmt : statements.values()) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				error = e;
+			}
+		}
+		statements.clear();
+		if (error != null) {
+			throw error;
+		}
+	}
+}
@@ -1,8 +1,13 @@
 package jwebkit.sql;
 
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Respresents an SQL table as accessed via JDBC. The purpose of this class
@@ -12,6 +17,12 @@ import java.sql.SQLException;
  *
  */
 public class SqlTable<T extends SqlRow> {
+	/**
+	 * The number of rows sent per JDBC batch by <code>insertAll()</code>, unless
+	 * otherwise specified.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
 	/**
 	 * Parent reference
 	 */
@@ -32,13 +43,76 @@ public class SqlTable<T extends SqlRow> {
 	 */
 	private final Column[] schema;
 
+	/**
+	 * The indices of the columns which make up the primary key for this table
+	 * (which is empty if no primary key is declared).
+	 */
+	private final int[] primaryKey;
+
+	/**
+	 * The decoder for rows of this table, which is created on first use.
+	 */
+	private volatile SqlRowDecoder<T> decoder;
+
+	/**
+	 * The cache of rows retrieved by primary key, or null if rows are not
+	 * cached for this table.
+	 */
+	private volatile SqlRowCache<T> rowCache;
+
+	/**
+	 * The buffer through which rows are inserted, or null if rows are inserted
+	 * directly.
+	 */
+	private volatile SqlWriteBehind<T> writeBehind;
+
+	/**
+	 * The table from which this table is projected, or null if this is not a
+	 * projection.
+	 */
+	private final SqlTable<?> source;
+
+	/**
+	 * The projections of this table which have been created so far, keyed on
+	 * their row class and column names.
+	 */
+	private final ConcurrentHashMap<List<Object>, SqlTable<?>> projections = new ConcurrentHashMap<>();
+
 	public SqlTable(SqlDatabase db, String name, Class<T> rowClass, Column... schema) {
+		this(db, name, rowClass, null, schema);
+		// Bind this table to the given database
+		db.bind(this);
+	}
+
+	/**
+	 * Construct a projection of a given table onto some subset of its
+	 * columns. A projection is not bound to the database, since it describes
+	 * the same physical table as its source.
+	 *
+	 * @param source
+	 * @param rowClass
+	 * @param schema
+	 */
+	private SqlTable(SqlTable<?> source, Class<T> rowClass, Column... schema) {
+		this(source.database, source.name, rowClass, source, schema);
+	}
+
+	private SqlTable(SqlDatabase db, String name, Class<T> rowClass, SqlTable<?> source, Column... schema) {
 		this.database = db;
 		this.name = name;
 		this.rowClass = rowClass;
+		this.source = source;
 		this.schema = schema;
-		// Bind this table to the given database
-		db.bind(this);
+		int n = 0;
+		for (int i = 0; i != schema.length; ++i) {
+			n += schema[i].isPrimaryKey() ? 1 : 0;
+		}
+		this.primaryKey = new int[n];
+		for (int i = 0, j = 0; i != schema.length; ++i) {
+			if (schema[i].isPrimaryKey()) {
+				primaryKey[j++] = i;
+			}
+		}
 	}
 
 	public SqlDatabase getDatabase() {
@@ -73,9 +147,29 @@ public class SqlTable<T extends SqlRow> {
 				return c;
 			}
 		}
+		if (source != null) {
+			// A projection can still be refined using columns which were not
+			// projected.
+			return source.getColumn(name);
+		}
 		throw new IllegalArgumentException("Invalid column - " + name);
 	}
 
+	/**
+	 * Get the index of a given column within this schema.
+	 *
+	 * @param column
+	 * @return
+	 */
+	public int indexOf(Column column) {
+		for (int i = 0; i != schema.length; ++i) {
+			if (schema[i].getName().equals(column.getName())) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Invalid column - " + column.getName());
+	}
+
 	/**
 	 * Get the number of columns defined by this schema.
 	 *
@@ -85,6 +179,63 @@ public class SqlTable<T extends SqlRow> {
 		return schema.length;
 	}
 
+	/**
+	 * Get the indices of the columns making up the primary key of this table,
+	 * in schema order. This is empty if the table has no primary key.
+	 *
+	 * @return
+	 */
+	public int[] getPrimaryKey() {
+		return primaryKey.clone();
+	}
+
+	/**
+	 * Get the cache used for rows retrieved by primary key, or null if there
+	 * is none.
+	 *
+	 * @return
+	 */
+	public SqlRowCache<T> getRowCache() {
+		return rowCache;
+	}
+
+	/**
+	 * Set the cache used for rows retrieved by primary key, or null to stop
+	 * caching. This is intended for tables which are read far more often than
+	 * they are modified.
+	 *
+	 * @param cache
+	 */
+	public void setRowCache(SqlRowCache<T> cache) {
+		this.rowCache = cache;
+	}
+
+	/**
+	 * Get the write-behind buffer through which rows are inserted, or null if
+	 * there is none.
+	 *
+	 * @return
+	 */
+	public SqlWriteBehind<T> getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Set the write-behind buffer through which rows are inserted by
+	 * <code>insert()</code>, or null to insert rows directly. With a buffer,
+	 * <code>insert()</code> returns without waiting for the row to be
+	 * written, and so a row may not be visible to queries immediately after
+	 * it is inserted. Other operations are unaffected.
+	 *
+	 * @param buffer
+	 */
+	public void setWriteBehind(SqlWriteBehind<T> buffer) {
+		if (buffer != null && buffer.getTable() != this) {
+			throw new IllegalArgumentException("Write-behind buffer is for a different table");
+		}
+		this.writeBehind = buffer;
+	}
+
 	public boolean exists() {
 		try {
 			return database.exists(this);
@@ -93,6 +244,58 @@ public class SqlTable<T extends SqlRow> {
 		}
 	}
 
+	/**
+	 * Check whether a row with the given primary key exists in this table. The
+	 * key values are given in the order the key columns appear in the schema.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public boolean exists(SqlValue... key) {
+		return whereKey(select(), key).exists();
+	}
+
+	/**
+	 * Get the row with a given primary key from this table, or
+	 * <code>null</code> if no such row exists. The key values are given in the
+	 * order the key columns appear in the schema.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public T get(SqlValue... key) {
+		SqlQuery<T> query = whereKey(select(), key);
+		SqlRowCache<T> cache = rowCache;
+		if (cache == null) {
+			return query.first();
+		} else {
+			return cache.get(Arrays.asList(key.clone()), query::first);
+		}
+	}
+
+	/**
+	 * Get the row with a given primary key from this table asynchronously.
+	 * The future completes with <code>null</code> if no such row exists.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public CompletableFuture<T> getAsync(SqlValue... key) {
+		SqlValue[] k = key.clone();
+		return database.async(() -> get(k));
+	}
+
+	/**
+	 * Delete the row with a given primary key from this table. The key values
+	 * are given in the order the key columns appear in the schema.
+	 *
+	 * @param key
+	 * @return True if a row was deleted.
+	 */
+	public boolean deleteByKey(SqlValue... key) {
+		return whereKey(delete(), key).apply() > 0;
+	}
+
 	/**
 	 * Check whether a given row object is an instance of the schema for this
 	 * table. This checks that the required number of fields are present, and
@@ -128,22 +331,32 @@ public class SqlTable<T extends SqlRow> {
 			}
 		}
 		// Construct a new row instance
-		try {
-			Constructor<T> constructor = rowClass.getConstructor(SqlValue[].class);
-			return constructor.newInstance(new Object[] { row });
-		} catch (NoSuchMethodException e) {
-			throw new IllegalArgumentException(e);
-		} catch (SecurityException e) {
-			throw new IllegalArgumentException(e);
-		} catch (InstantiationException e) {
-			throw new IllegalArgumentException(e);
-		} catch (IllegalAccessException e) {
-			throw new IllegalArgumentException(e);
-		} catch (IllegalArgumentException e) {
-			throw new IllegalArgumentException(e);
-		} catch (InvocationTargetException e) {
-			throw new IllegalArgumentException(e);
+		return getDecoder().newInstance(row);
+	}
+
+	/**
+	 * Get the decoder for rows of this table, creating it if necessary. This
+	 * resolves the column types and row constructor once for the table, rather
+	 * than once per row.
+	 *
+	 * @return
+	 */
+	SqlRowDecoder<T> getDecoder() {
+		SqlRowDecoder<T> d = decoder;
+		if (d == null) {
+			SqlType[] types = new SqlType[schema.length];
+			for (int i = 0; i != schema.length; ++i) {
+				types[i] = schema[i].type;
+			}
+			try {
+				Constructor<T> constructor = rowClass.getConstructor(SqlValue[].class);
+				d = new SqlRowDecoder<>(types, constructor);
+			} catch (NoSuchMethodException | SecurityException e) {
+				throw new IllegalArgumentException(e);
+			}
+			decoder = d;
 		}
+		return d;
 	}
 
 	/**
@@ -166,6 +379,11 @@ public class SqlTable<T extends SqlRow> {
 	 * @param row
 	 */
 	public void insert(T row) {
+		SqlWriteBehind<T> buffer = writeBehind;
+		if (buffer != null) {
+			buffer.insert(row);
+			return;
+		}
 		try {
 			database.insert(this, row);
 		} catch(SQLException e) {
@@ -173,6 +391,62 @@ public class SqlTable<T extends SqlRow> {
 		}
 	}
 
+	/**
+	 * Add a new row to this table asynchronously. The returned future
+	 * completes once the row has been inserted.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public CompletableFuture<Void> insertAsync(T row) {
+		return database.async(() -> {
+			insert(row);
+			return null;
+		});
+	}
+
+	/**
+	 * Add a sequence of rows to this table, sending them to the database in
+	 * batches of <code>DEFAULT_BATCH_SIZE</code> rows.
+	 *
+	 * @param rows
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> insertAll(Iterable<T> rows) {
+		return insertAll(rows.iterator(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Add a sequence of rows to this table, sending them to the database in
+	 * batches of a given size.
+	 *
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> insertAll(Iterable<T> rows, int batchSize) {
+		return insertAll(rows.iterator(), batchSize);
+	}
+
+	/**
+	 * Add a stream of rows to this table, sending them to the database in
+	 * batches of a given size. Rows are only drawn from the iterator as each
+	 * batch is filled, so the stream need never be held in memory as a whole.
+	 * Unless part of an enclosing transaction, each batch is committed as it
+	 * completes.
+	 *
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> insertAll(Iterator<T> rows, int batchSize) {
+		try {
+			return database.insertAll(this, rows, batchSize);
+		} catch(SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
 	/**
 	 * Delete a given row from the database. If this row is not of the
 	 * appropriate structure, then an error is thrown.
@@ -187,6 +461,136 @@ public class SqlTable<T extends SqlRow> {
 		}
 	}
 
+	/**
+	 * Delete a given row from the database asynchronously. The returned future
+	 * completes once the row has been deleted.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public CompletableFuture<Void> deleteAsync(T row) {
+		return database.async(() -> {
+			delete(row);
+			return null;
+		});
+	}
+
+	/**
+	 * Delete a sequence of rows of this table by primary key, sending them to
+	 * the database in batches of <code>DEFAULT_BATCH_SIZE</code> rows.
+	 *
+	 * @param rows
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> deleteAll(Iterable<T> rows) {
+		return deleteAll(rows.iterator(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Delete a stream of rows of this table by primary key, sending them to
+	 * the database in batches of a given size. Unless part of an enclosing
+	 * transaction, each batch is committed as it completes.
+	 *
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> deleteAll(Iterator<T> rows, int batchSize) {
+		try {
+			return database.deleteAll(this, rows, batchSize);
+		} catch(SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Update a given row of this table, which is identified by its primary
+	 * key. Every other column is set to the value it holds in the given row.
+	 *
+	 * @param row
+	 * @return True if the row was updated (i.e. a row with its key exists).
+	 */
+	public boolean update(T row) {
+		try {
+			return database.update(this, row);
+		} catch(SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Update a sequence of rows of this table by primary key, sending them to
+	 * the database in batches of <code>DEFAULT_BATCH_SIZE</code> rows.
+	 *
+	 * @param rows
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> updateAll(Iterable<T> rows) {
+		return updateAll(rows.iterator(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Update a stream of rows of this table by primary key, sending them to
+	 * the database in batches of a given size. Unless part of an enclosing
+	 * transaction, each batch is committed as it completes.
+	 *
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> updateAll(Iterator<T> rows, int batchSize) {
+		try {
+			return database.updateAll(this, rows, batchSize);
+		} catch(SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Add a row to this table or, if a row with the same primary key already
+	 * exists, replace that row. Where the database supports it (e.g. SQLite,
+	 * PostgreSQL, MySQL and H2) this requires a single statement.
+	 *
+	 * @param row
+	 */
+	public void upsert(T row) {
+		try {
+			database.upsert(this, row);
+		} catch(SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Add or replace a sequence of rows of this table (as for
+	 * <code>upsert()</code>), sending them to the database in batches of
+	 * <code>DEFAULT_BATCH_SIZE</code> rows.
+	 *
+	 * @param rows
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> upsertAll(Iterable<T> rows) {
+		return upsertAll(rows.iterator(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Add or replace a stream of rows of this table (as for
+	 * <code>upsert()</code>), sending them to the database in batches of a
+	 * given size. Unless part of an enclosing transaction, each batch is
+	 * committed as it completes.
+	 *
+	 * @param rows
+	 * @param batchSize
+	 * @return The update counts for each batch executed.
+	 */
+	public List<int[]> upsertAll(Iterator<T> rows, int batchSize) {
+		try {
+			return database.upsertAll(this, rows, batchSize);
+		} catch(SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
 	/**
 	 * Get an iterator over all rows of the table
 	 */
@@ -194,6 +598,46 @@ public class SqlTable<T extends SqlRow> {
 		return new SqlQuery.Select<>(this);
 	}
 
+	/**
+	 * Get a query over the given columns of this table, rather than over
+	 * every column. Only the given columns are transferred from the database,
+	 * and each result is a tuple holding their values in the order given.
+	 *
+	 * @param columns
+	 * @return
+	 */
+	public SqlQuery<SqlTuple> select(Column... columns) {
+		return select(SqlTuple.class, columns);
+	}
+
+	/**
+	 * Get a query over the given named columns of this table, rather than
+	 * over every column.
+	 *
+	 * @param columns
+	 * @return
+	 */
+	public SqlQuery<SqlTuple> select(String... columns) {
+		Column[] cs = new Column[columns.length];
+		for (int i = 0; i != columns.length; ++i) {
+			cs[i] = getColumn(columns[i]);
+		}
+		return select(SqlTuple.class, cs);
+	}
+
+	/**
+	 * Get a query over the given columns of this table, where each result is
+	 * an instance of a given row class. As for the table itself, the row class
+	 * must provide a public constructor accepting an <code>SqlValue[]</code>.
+	 *
+	 * @param rowClass
+	 * @param columns
+	 * @return
+	 */
+	public <S extends SqlRow> SqlQuery<S> select(Class<S> rowClass, Column... columns) {
+		return new SqlQuery.Select<>(project(rowClass, columns));
+	}
+
 	/**
 	 * Get an
 	 * @return
@@ -202,6 +646,109 @@ public class SqlTable<T extends SqlRow> {
 		return new SqlQuery.Delete<>(this);
 	}
 
+	/**
+	 * Get an UPDATE query over this table. The columns to be changed are given
+	 * using <code>set()</code>, after which the rows affected can be refined
+	 * using WHERE clauses as for any other query. For example:
+	 *
+	 * <pre>
+	 * table.update().set("name", value).whereEqual("id", id).apply();
+	 * </pre>
+	 *
+	 * @return
+	 */
+	public SqlQuery.Update<T> update() {
+		return new SqlQuery.Update<>(this);
+	}
+
+	/**
+	 * Get the list of columns selected from this table, which is "*" unless
+	 * this table is a projection.
+	 *
+	 * @return
+	 */
+	String getSelectList() {
+		if (source == null) {
+			return "*";
+		}
+		StringBuilder r = new StringBuilder();
+		for (int i = 0; i != schema.length; ++i) {
+			if (i != 0) {
+				r.append(", ");
+			}
+			r.append(schema[i].getName());
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Get the projection of this table onto a given set of columns. The
+	 * projection is created on first use, and reused thereafter so that its
+	 * row decoder is only resolved once.
+	 *
+	 * @param rowClass
+	 * @param columns
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <S extends SqlRow> SqlTable<S> project(Class<S> rowClass, Column... columns) {
+		if (columns.length == 0) {
+			throw new IllegalArgumentException("Require at least one column for projection");
+		}
+		ArrayList<Object> key = new ArrayList<>();
+		key.add(rowClass);
+		for (Column c : columns) {
+			key.add(c.getName());
+		}
+		return (SqlTable<S>) projections.computeIfAbsent(key, k -> {
+			Column[] cs = new Column[columns.length];
+			for (int i = 0; i != columns.length; ++i) {
+				cs[i] = schema[indexOf(columns[i])];
+			}
+			return new SqlTable<>(this, rowClass, cs);
+		});
+	}
+
+	/**
+	 * Notify this table that a given row has been modified in the database, or
+	 * that any number of rows may have been if <code>row</code> is null.
+	 *
+	 * @param row
+	 */
+	void modified(SqlRow row) {
+		SqlRowCache<T> cache = rowCache;
+		if (cache == null) {
+			return;
+		} else if (row == null || primaryKey.length == 0) {
+			cache.clear();
+		} else {
+			SqlValue[] key = new SqlValue[primaryKey.length];
+			for (int i = 0; i != key.length; ++i) {
+				key[i] = row.get(primaryKey[i]);
+			}
+			cache.invalidate(Arrays.asList(key));
+		}
+	}
+
+	/**
+	 * Refine a given query to match only the row with a given primary key.
+	 *
+	 * @param query
+	 * @param key
+	 * @return
+	 */
+	private SqlQuery<T> whereKey(SqlQuery<T> query, SqlValue[] key) {
+		if (primaryKey.length == 0) {
+			throw new IllegalArgumentException("No primary key for table " + name);
+		} else if (key.length != primaryKey.length) {
+			throw new IllegalArgumentException("Invalid key for table " + name);
+		}
+		for (int i = 0; i != key.length; ++i) {
+			query = query.whereEqual(schema[primaryKey[i]], key[i]);
+		}
+		return query;
+	}
+
 	/**
 	 * Represents a column in the table. This determines the column's name and
 	 * type, and essentially defines part of the table's schema.
@@ -212,10 +759,24 @@ public class SqlTable<T extends SqlRow> {
 	public static final class Column {
 		private final String name;
 		private final SqlType type;
+		private final boolean primaryKey;
 
 		public Column(String name, SqlType type) {
+			this(name, type, false);
+		}
+
+		/**
+		 * Construct a column which may form part of the table's primary key.
+		 * Where several columns are so declared, the key is composite.
+		 *
+		 * @param name
+		 * @param type
+		 * @param primaryKey
+		 */
+		public Column(String name, SqlType type, boolean primaryKey) {
 			this.name = name;
 			this.type = type;
+			this.primaryKey = primaryKey;
 		}
 
 		public String getName() {
@@ -225,5 +786,9 @@ public class SqlTable<T extends SqlRow> {
 		public SqlType getType() {
 			return type;
 		}
+
+		public boolean isPrimaryKey() {
+			return primaryKey;
+		}
 	}
 }
\ No newline at end of file
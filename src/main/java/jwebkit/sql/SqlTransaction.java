@@ -0,0 +1,160 @@
+package jwebkit.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+
+/**
+ * Represents a transaction in progress, as started by
+ * <code>SqlDatabase.inTransaction()</code>. Every operation performed on the
+ * database by the thread which started the transaction forms part of it,
+ * until the transaction completes. This provides access to savepoints, which
+ * allow part of a transaction to be rolled back without abandoning the whole.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlTransaction {
+	/**
+	 * The isolation levels which a transaction may request. Not every
+	 * database supports every level (e.g. SQLite supports only
+	 * <code>READ_UNCOMMITTED</code> and <code>SERIALIZABLE</code>).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum Isolation {
+		READ_UNCOMMITTED(Connection.TRANSACTION_READ_UNCOMMITTED),
+		READ_COMMITTED(Connection.TRANSACTION_READ_COMMITTED),
+		REPEATABLE_READ(Connection.TRANSACTION_REPEATABLE_READ),
+		SERIALIZABLE(Connection.TRANSACTION_SERIALIZABLE);
+
+		private final int level;
+
+		private Isolation(int level) {
+			this.level = level;
+		}
+
+		/**
+		 * Get the JDBC constant corresponding to this isolation level.
+		 *
+		 * @return
+		 */
+		public int getLevel() {
+			return level;
+		}
+	}
+
+	private final Connection connection;
+
+	/**
+	 * The tables modified during this transaction, keyed on name. Any cached
+	 * rows of these tables are discarded again once the transaction completes,
+	 * since they may have been loaded from uncommitted (or rolled back) state.
+	 */
+	private final LinkedHashMap<String, SqlTable<?>> modified = new LinkedHashMap<>();
+
+	private boolean rollbackOnly;
+
+	SqlTransaction(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Mark this transaction so that it is rolled back rather than committed
+	 * when it completes.
+	 */
+	public void setRollbackOnly() {
+		rollbackOnly = true;
+	}
+
+	/**
+	 * Check whether this transaction will be rolled back when it completes.
+	 *
+	 * @return
+	 */
+	public boolean isRollbackOnly() {
+		return rollbackOnly;
+	}
+
+	/**
+	 * Create a savepoint at the current point in this transaction.
+	 *
+	 * @return
+	 */
+	public Savepoint savepoint() {
+		try {
+			return connection.setSavepoint();
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Undo everything done in this transaction since a given savepoint was
+	 * created.
+	 *
+	 * @param savepoint
+	 */
+	public void rollback(Savepoint savepoint) {
+		try {
+			connection.rollback(savepoint);
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Release a given savepoint, which is no longer required.
+	 *
+	 * @param savepoint
+	 */
+	public void release(Savepoint savepoint) {
+		try {
+			connection.releaseSavepoint(savepoint);
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+
+	/**
+	 * Run a given unit of work nested within this transaction. The work is
+	 * bracketed by a savepoint, such that if it fails then only its own
+	 * changes are rolled back.
+	 *
+	 * @param work
+	 * @return
+	 */
+	<R> R nested(Function<SqlTransaction, R> work) {
+		Savepoint savepoint = savepoint();
+		try {
+			R result = work.apply(this);
+			release(savepoint);
+			return result;
+		} catch (RuntimeException | Error e) {
+			rollback(savepoint);
+			throw e;
+		}
+	}
+
+	/**
+	 * Record that a given table was modified during this transaction.
+	 *
+	 * @param table
+	 */
+	void modified(SqlTable<?> table) {
+		modified.putIfAbsent(table.getName(), table);
+	}
+
+	/**
+	 * Get the tables modified during this transaction.
+	 *
+	 * @return
+	 */
+	Collection<SqlTable<?>> getModified() {
+		return modified.values();
+	}
+}
@@ -0,0 +1,16 @@
+package jwebkit.sql;
+
+/**
+ * A general purpose row, as returned by queries over some subset of a table's
+ * columns. The values of a tuple are held in the order in which the columns
+ * were given.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlTuple extends AbstractSqlRow {
+
+	public SqlTuple(SqlValue... items) {
+		super(items);
+	}
+}
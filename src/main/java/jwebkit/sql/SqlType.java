@@ -1,6 +1,8 @@
 package jwebkit.sql;
 
 import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -126,6 +128,12 @@ public abstract class SqlType {
 			}
 		}
 
+		@Override
+		public SqlValue.Int read(ResultSet rs, int index) throws SQLException {
+			long v = rs.getLong(index);
+			return rs.wasNull() ? null : SqlValue.Int(v);
+		}
+
 		@Override
 		public String toString() {
 			return "INT";
@@ -163,6 +171,12 @@ public abstract class SqlType {
 			return new SqlValue.Text((String)o);
 		}
 
+		@Override
+		public SqlValue.Text read(ResultSet rs, int index) throws SQLException {
+			String v = rs.getString(index);
+			return v == null ? null : new SqlValue.Text(v);
+		}
+
 		@Override
 		public String toString() {
 			return "VARCHAR(" + width + ")";
@@ -203,6 +217,12 @@ public abstract class SqlType {
 		public SqlValue.Text fromObject(Object o) {
 			return new SqlValue.Text((String)o);
 		}
+
+		@Override
+		public SqlValue.Text read(ResultSet rs, int index) throws SQLException {
+			String v = rs.getString(index);
+			return v == null ? null : new SqlValue.Text(v);
+		}
 	}
 
 	public static final SqlType.DATE DATE = new DATE();
@@ -230,6 +250,12 @@ public abstract class SqlType {
 				return new SqlValue.Date((LocalDate) o);
 			}
 		}
+
+		@Override
+		public SqlValue.Date read(ResultSet rs, int index) throws SQLException {
+			java.sql.Date v = rs.getDate(index);
+			return v == null ? null : new SqlValue.Date(v.toLocalDate());
+		}
 	}
 	public static final SqlType.DATETIME DATETIME = new DATETIME();
 
@@ -252,6 +278,12 @@ public abstract class SqlType {
 			Timestamp timestamp = new Timestamp((Long)o);
 			return new SqlValue.DateTime(timestamp.toLocalDateTime());
 		}
+
+		@Override
+		public SqlValue.DateTime read(ResultSet rs, int index) throws SQLException {
+			Timestamp v = rs.getTimestamp(index);
+			return v == null ? null : new SqlValue.DateTime(v.toLocalDateTime());
+		}
 	}
 
 	public static class TIMESTAMP extends SqlType {
@@ -290,6 +322,21 @@ public abstract class SqlType {
 			this.element = element;
 		}
 
+		/**
+		 * Get the type of the non-null values permitted by this type.
+		 *
+		 * @return
+		 */
+		public T getElement() {
+			return element;
+		}
+
+		@Override
+		public String toString() {
+			// Columns are nullable unless declared otherwise
+			return element.toString();
+		}
+
 		@Override
 		public SqlValue fromObject(Object object) {
 			if(object == null) {
@@ -299,6 +346,11 @@ public abstract class SqlType {
 			}
 		}
 
+		@Override
+		public SqlValue read(ResultSet rs, int index) throws SQLException {
+			return element.read(rs, index);
+		}
+
 		@Override
 		public boolean isInstance(SqlValue value) {
 			if(value == null) {
@@ -318,6 +370,23 @@ public abstract class SqlType {
 	 */
 	public abstract SqlValue fromObject(Object object);
 
+	/**
+	 * Read a value of this type from a given column of the current row in a
+	 * ResultSet, returning <code>null</code> if the column is NULL. Types
+	 * should override this to use the appropriately typed JDBC getter, thereby
+	 * avoiding the boxing and dispatch of <code>fromObject()</code>.
+	 *
+	 * @param rs
+	 * @param index
+	 *            The (one-based) column index.
+	 * @return
+	 * @throws SQLException
+	 */
+	public SqlValue read(ResultSet rs, int index) throws SQLException {
+		Object object = rs.getObject(index);
+		return object == null ? null : fromObject(object);
+	}
+
 	/**
 	 * Check whether a given value is an instance of this type or not.
 	 */
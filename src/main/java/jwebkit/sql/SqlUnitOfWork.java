@@ -0,0 +1,127 @@
+package jwebkit.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers a sequence of modifications to be applied to the database together.
+ * Rather than each insert, update or delete being executed (and committed) as
+ * it is made, modifications are recorded and then applied by
+ * <code>flush()</code> in a single transaction. Consecutive modifications of
+ * the same kind to the same table are sent as one JDBC batch. This amortises
+ * the cost of each commit (e.g. an fsync) over many modifications, which is
+ * significant for write-heavy workloads.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SqlUnitOfWork {
+	private enum Kind {
+		INSERT, UPDATE, UPSERT, DELETE
+	}
+
+	private final SqlDatabase database;
+	private final ArrayList<Operation> operations = new ArrayList<>();
+
+	public SqlUnitOfWork(SqlDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * Get the number of modifications waiting to be flushed.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return operations.size();
+	}
+
+	public synchronized <T extends SqlRow> void insert(SqlTable<T> table, T row) {
+		add(Kind.INSERT, table, row);
+	}
+
+	public synchronized <T extends SqlRow> void update(SqlTable<T> table, T row) {
+		add(Kind.UPDATE, table, row);
+	}
+
+	public synchronized <T extends SqlRow> void upsert(SqlTable<T> table, T row) {
+		add(Kind.UPSERT, table, row);
+	}
+
+	public synchronized <T extends SqlRow> void delete(SqlTable<T> table, T row) {
+		add(Kind.DELETE, table, row);
+	}
+
+	/**
+	 * Discard every modification waiting to be flushed.
+	 */
+	public synchronized void clear() {
+		operations.clear();
+	}
+
+	/**
+	 * Apply every modification waiting to be flushed, in the order they were
+	 * made, as a single transaction. If this fails then the transaction is
+	 * rolled back and the modifications remain waiting, such that they can be
+	 * flushed again or discarded.
+	 */
+	public synchronized void flush() {
+		if (operations.isEmpty()) {
+			return;
+		}
+		database.inTransaction(tx -> {
+			int i = 0;
+			while (i != operations.size()) {
+				Operation first = operations.get(i);
+				ArrayList<SqlRow> rows = new ArrayList<>();
+				for (; i != operations.size(); ++i) {
+					Operation op = operations.get(i);
+					if (op.kind != first.kind || op.table != first.table) {
+						break;
+					}
+					rows.add(op.row);
+				}
+				apply(first.kind, first.table, rows);
+			}
+			return null;
+		});
+		operations.clear();
+	}
+
+	private void add(Kind kind, SqlTable<?> table, SqlRow row) {
+		if (!table.isInstance(row)) {
+			throw new IllegalArgumentException("invalid row for table");
+		}
+		operations.add(new Operation(kind, table, row));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void apply(Kind kind, SqlTable table, List<SqlRow> rows) {
+		switch (kind) {
+		case INSERT:
+			table.insertAll(rows);
+			break;
+		case UPDATE:
+			table.updateAll(rows);
+			break;
+		case UPSERT:
+			table.upsertAll(rows);
+			break;
+		case DELETE:
+			table.deleteAll(rows);
+			break;
+		}
+	}
+
+	private static final class Operation {
+		private final Kind kind;
+		private final SqlTable<?> table;
+		private final SqlRow row;
+
+		public Operation(Kind kind, SqlTable<?> table, SqlRow row) {
+			this.kind = kind;
+			this.table = table;
+			this.row = row;
+		}
+	}
+}
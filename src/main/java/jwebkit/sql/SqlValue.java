@@ -101,8 +101,7 @@ public class SqlValue {
 
 		@Override
 		public String toString() {
-			// FIXME: this is broken
-			return "\"" + new String(value) + "\"";
+			return "'" + new String(value).replace("'", "''") + "'";
 		}
 	}
 
@@ -117,6 +116,11 @@ public class SqlValue {
 			return date;
 		}
 
+		@Override
+		public int hashCode() {
+			return date.hashCode();
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			return o instanceof Date && date.equals(((Date)o).date);
@@ -139,6 +143,11 @@ public class SqlValue {
 			return datetime;
 		}
 
+		@Override
+		public int hashCode() {
+			return datetime.hashCode();
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			return o instanceof DateTime && datetime.equals(((DateTime)o).datetime);
@@ -157,6 +166,11 @@ public class SqlValue {
 			this.time = time;
 		}
 
+		@Override
+		public int hashCode() {
+			return time.hashCode();
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			return o instanceof TimeStamp && time.equals(((TimeStamp)o).time);
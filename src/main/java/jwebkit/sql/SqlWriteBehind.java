@@ -0,0 +1,360 @@
+package jwebkit.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Buffers rows to be inserted into a table, writing them from a background
+ * thread. This is intended for tables receiving a high rate of inserts whose
+ * callers need not wait for them to complete (e.g. event or audit logs).
+ * Rows are held in a bounded queue and written as JDBC batches, either once a
+ * full batch is available or once the oldest buffered row has waited for a
+ * given time. What happens when the queue is full is determined by the
+ * overflow policy. Since rows are written asynchronously, failures cannot be
+ * reported to the caller which inserted them; instead, they are reported by
+ * the next call to <code>flush()</code>.
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+public final class SqlWriteBehind<T extends SqlRow> implements AutoCloseable {
+	/**
+	 * Determines what happens to a row inserted whilst the queue is full.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum Overflow {
+		/**
+		 * The inserting thread waits until there is space in the queue.
+		 */
+		BLOCK,
+		/**
+		 * The row is discarded.
+		 */
+		DROP,
+		/**
+		 * The row is written immediately by the inserting thread. Hence, it
+		 * may be written before rows which were inserted earlier.
+		 */
+		CALLER_RUNS
+	}
+
+	private final SqlTable<T> table;
+	private final int batchSize;
+	private final long maxDelay;
+	private final Overflow overflow;
+
+	/**
+	 * Holds both rows waiting to be written and barriers, which are completed
+	 * once every row ahead of them has been written.
+	 */
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The space remaining in the queue.
+	 */
+	private final Semaphore space;
+
+	/**
+	 * The number of rows currently in the queue.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final Thread flusher;
+	private volatile boolean closed;
+
+	/**
+	 * The first failure since the last barrier, which is reported by the next
+	 * barrier.
+	 */
+	private volatile RuntimeException failure;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	/**
+	 * Construct a write-behind buffer for a given table, and start its
+	 * background thread.
+	 *
+	 * @param table
+	 * @param capacity
+	 *            Maximum number of rows waiting to be written.
+	 * @param batchSize
+	 *            Number of rows written per batch.
+	 * @param maxDelay
+	 *            Maximum time (in milliseconds) a row waits for its batch to
+	 *            fill before being written.
+	 * @param overflow
+	 *            What to do when the queue is full.
+	 */
+	public SqlWriteBehind(SqlTable<T> table, int capacity, int batchSize, long maxDelay, Overflow overflow) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid write-behind capacity");
+		} else if (batchSize < 1) {
+			throw new IllegalArgumentException("invalid batch size");
+		} else if (maxDelay < 0) {
+			throw new IllegalArgumentException("Invalid write-behind delay");
+		}
+		this.table = table;
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay * 1000000;
+		this.overflow = overflow;
+		this.space = new Semaphore(capacity);
+		this.flusher = new Thread(this::run, "jwebkit-write-behind-" + table.getName());
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	public SqlTable<T> getTable() {
+		return table;
+	}
+
+	/**
+	 * Get the number of rows waiting to be written.
+	 *
+	 * @return
+	 */
+	public int getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * Get the number of rows written successfully.
+	 *
+	 * @return
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * Get the number of rows discarded because the queue was full.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the number of rows which could not be written, because the batch
+	 * containing them failed.
+	 *
+	 * @return
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Get the number of batches written by the background thread.
+	 *
+	 * @return
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Queue a given row to be inserted into the table.
+	 *
+	 * @param row
+	 * @return False if the row was discarded because the queue was full.
+	 */
+	public boolean insert(T row) {
+		if (closed) {
+			throw new IllegalStateException("write-behind buffer is closed");
+		} else if (!table.isInstance(row)) {
+			throw new IllegalArgumentException("invalid row for table");
+		}
+		if (!space.tryAcquire()) {
+			switch (overflow) {
+			case BLOCK:
+				space.acquireUninterruptibly();
+				break;
+			case DROP:
+				dropped.incrementAndGet();
+				return false;
+			case CALLER_RUNS:
+				try {
+					table.getDatabase().insertAll(table, Collections.singletonList(row).iterator(), 1);
+				} catch (SQLException e) {
+					throw new RuntimeException("SQL Exception", e);
+				}
+				return true;
+			}
+		}
+		queue.offer(row);
+		int n = queued.incrementAndGet();
+		if (n == 1 || n == batchSize) {
+			// Wake the flusher, which may be waiting for a first row or a full
+			// batch
+			LockSupport.unpark(flusher);
+		}
+		if (closed) {
+			// The flusher may already have finished, in which case this row
+			// must be written here. This waits for the flusher, since it may
+			// still be writing earlier rows.
+			awaitFlusher();
+			drain();
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until every row queued before this call has been written. If any
+	 * rows could not be written since the last flush, then the first such
+	 * failure is rethrown.
+	 */
+	public void flush() {
+		CompletableFuture<Void> barrier = new CompletableFuture<>();
+		queue.offer(barrier);
+		LockSupport.unpark(flusher);
+		if (closed) {
+			// The flusher may already have finished, in which case the
+			// barrier must be completed here (as above).
+			awaitFlusher();
+			drain();
+		}
+		barrier.join();
+		RuntimeException e = failure;
+		if (e != null) {
+			failure = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop accepting rows, and wait until every row already queued has been
+	 * written and the background thread has finished.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(flusher);
+		awaitFlusher();
+		drain();
+	}
+
+	/**
+	 * Wait for the background thread to finish, once this buffer is closed.
+	 * Only then can the remaining items be drained on the current thread,
+	 * since until then the background thread may hold earlier rows in its
+	 * batch.
+	 */
+	private void awaitFlusher() {
+		boolean interrupted = false;
+		while (flusher.isAlive()) {
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The main loop of the background thread.
+	 */
+	private void run() {
+		ArrayList<T> batch = new ArrayList<>(batchSize);
+		long deadline = 0;
+		while (true) {
+			Object item = queue.poll();
+			if (item == null) {
+				if (closed) {
+					break;
+				} else if (batch.isEmpty()) {
+					LockSupport.parkNanos(this, maxDelay > 0 ? maxDelay : Long.MAX_VALUE);
+				} else if (deadline - System.nanoTime() <= 0) {
+					write(batch);
+					batch.clear();
+				} else {
+					LockSupport.parkNanos(this, deadline - System.nanoTime());
+				}
+			} else if (accept(item, batch)) {
+				if (batch.size() == 1) {
+					deadline = System.nanoTime() + maxDelay;
+				}
+				if (batch.size() >= batchSize || maxDelay == 0) {
+					write(batch);
+					batch.clear();
+				}
+			}
+		}
+		write(batch);
+	}
+
+	/**
+	 * Write every item remaining in the queue on the current thread. This must
+	 * only be called once the background thread has finished.
+	 */
+	private synchronized void drain() {
+		ArrayList<T> batch = new ArrayList<>();
+		Object item;
+		while ((item = queue.poll()) != null) {
+			if (accept(item, batch) && batch.size() >= batchSize) {
+				write(batch);
+				batch.clear();
+			}
+		}
+		write(batch);
+	}
+
+	/**
+	 * Accept an item taken from the queue. A row is added to the given batch,
+	 * whilst a barrier is completed once the batch has been written.
+	 *
+	 * @param item
+	 * @param batch
+	 * @return True if a row was added to the batch.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean accept(Object item, ArrayList<T> batch) {
+		if (item instanceof CompletableFuture) {
+			write(batch);
+			batch.clear();
+			((CompletableFuture<Void>) item).complete(null);
+			return false;
+		}
+		queued.decrementAndGet();
+		space.release();
+		batch.add((T) item);
+		return true;
+	}
+
+	/**
+	 * Write a given batch of rows, recording any failure.
+	 *
+	 * @param batch
+	 */
+	private void write(ArrayList<T> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			table.getDatabase().insertAll(table, batch.iterator(), batchSize);
+			written.addAndGet(batch.size());
+			batches.incrementAndGet();
+		} catch (SQLException | RuntimeException e) {
+			failed.addAndGet(batch.size());
+			if (failure == null) {
+				failure = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException("SQL Exception", e);
+			}
+		}
+	}
+}
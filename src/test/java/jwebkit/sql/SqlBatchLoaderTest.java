@@ -0,0 +1,71 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for coalescing lookups of rows by key into batched queries.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlBatchLoaderTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test
+	public void test_JoinDispatches() {
+		SqlBatchLoader<Item> loader = new SqlBatchLoader<>(table);
+		CompletableFuture<Item> one = loader.load(SqlValue.Int(1));
+		CompletableFuture<Item> three = loader.load(SqlValue.Int(3));
+		CompletableFuture<Item> missing = loader.load(SqlValue.Int(99));
+		assertFalse(one.isDone());
+		// Waiting for any one result dispatches them all together
+		assertEquals(SqlValue.Int(3), three.join().get(0));
+		assertTrue(one.isDone());
+		assertNull(missing.join());
+		assertEquals(1, loader.getBatchCount());
+		// Already loaded, so no further query is needed
+		assertEquals(SqlValue.Int(1), loader.get(SqlValue.Int(1)).get(0));
+		assertEquals(1, loader.getBatchCount());
+	}
+
+	@Test
+	public void test_SplitIn() throws Exception {
+		for (int i = 4; i <= 10; ++i) {
+			table.insert(SqlTestTables.item(i, "item" + i));
+		}
+		db.setMaxParameters(3);
+		SqlBatchLoader<Item> loader = new SqlBatchLoader<>(table);
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Item>[] results = new CompletableFuture[10];
+		for (int i = 0; i != 10; ++i) {
+			results[i] = loader.load(SqlValue.Int(i + 1));
+		}
+		for (int i = 0; i != 10; ++i) {
+			assertEquals(SqlValue.Int(i + 1), results[i].get().get(0));
+		}
+		assertEquals(1, loader.getBatchCount());
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+}
@@ -0,0 +1,116 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for collecting query results into columnar form.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlColumnBatchTest {
+	public static class Event extends AbstractSqlRow {
+		public Event(SqlValue... values) {
+			super(values);
+		}
+	}
+
+	private SqlDatabase db;
+	private SqlTable<Event> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = new SqlTable<>(db, "events", Event.class,
+				new SqlTable.Column("id", SqlType.INT, true),
+				new SqlTable.Column("name", SqlType.NULLABLE(SqlType.VARCHAR(64))),
+				new SqlTable.Column("born", SqlType.NULLABLE(SqlType.DATE)),
+				new SqlTable.Column("seen", SqlType.NULLABLE(SqlType.DATETIME)));
+		table.create();
+		// Enough rows to grow each column beyond its initial capacity
+		for (int i = 1; i <= 20; ++i) {
+			table.insert(new Event(SqlValue.Int(i), new SqlValue.Text("e" + i),
+					new SqlValue.Date(LocalDate.ofEpochDay(i)),
+					new SqlValue.DateTime(LocalDateTime.of(2024, 1, 1, 0, 0, i))));
+		}
+		table.insert(new Event(SqlValue.Int(21), null, null, null));
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test
+	public void test_Values() {
+		SqlColumnBatch batch = table.select().orderBy(table.getColumn("id")).collectColumnar();
+		assertEquals(21, batch.size());
+		assertEquals(4, batch.width());
+		SqlColumnBatch.TextColumn names = batch.getTextColumn("name");
+		SqlColumnBatch.DateColumn days = batch.getDateColumn("born");
+		SqlColumnBatch.DateTimeColumn ats = batch.getDateTimeColumn("seen");
+		assertEquals("e1", names.getString(0));
+		assertEquals(2, names.getLength(0));
+		assertEquals(LocalDate.ofEpochDay(20), days.getLocalDate(19));
+		assertEquals(LocalDateTime.of(2024, 1, 1, 0, 0, 20), ats.getLocalDateTime(19));
+		assertTrue(names.isNull(20));
+		assertTrue(days.isNull(20));
+		assertNull(ats.get(20));
+		assertFalse(ats.isNull(19));
+	}
+
+	@Test
+	public void test_Bounds() {
+		SqlColumnBatch batch = table.select().orderBy(table.getColumn("id")).collectColumnar();
+		// Space is allocated beyond the final row, but must not be readable
+		SqlColumnBatch.Column[] columns = { batch.getIntColumn("id"), batch.getTextColumn("name"),
+				batch.getDateColumn("born"), batch.getDateTimeColumn("seen") };
+		for (SqlColumnBatch.Column column : columns) {
+			assertEquals(21, column.size());
+			for (int row : new int[] { -1, 21, 31 }) {
+				try {
+					column.get(row);
+					fail("Expected row " + row + " to be out of bounds");
+				} catch (IndexOutOfBoundsException e) {
+					// expected
+				}
+			}
+		}
+		try {
+			batch.getIntColumn("id").getLong(21);
+			fail("Expected row to be out of bounds");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void test_Bulk() {
+		SqlColumnBatch batch = table.select().orderBy(table.getColumn("id")).collectColumnar();
+		SqlColumnBatch.IntColumn ids = batch.getIntColumn("id");
+		assertEquals(231, ids.sum());
+		assertEquals(231, ids.longs().sum());
+		long[] values = ids.toArray();
+		assertEquals(21, values.length);
+		assertEquals(21, values[20]);
+		// Copies do not expose the batch itself
+		values[0] = 100;
+		assertEquals(1, ids.getLong(0));
+		SqlColumnBatch.DateColumn days = batch.getDateColumn("born");
+		// The NULL date is given as zero
+		assertEquals(210, days.epochDays().sum());
+		assertEquals(21, days.toEpochDayArray().length);
+		SqlColumnBatch.DateTimeColumn ats = batch.getDateTimeColumn("seen");
+		assertEquals(20, ats.epochMillis().filter(ms -> ms != 0).count());
+		assertEquals(21, ats.toEpochMillisArray().length);
+	}
+}
@@ -0,0 +1,231 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for the pooling of connections between threads.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlConnectionPoolTest {
+
+	@Test(timeout = 10000)
+	public void test_Reentrant() throws Exception {
+		SqlConnectionPool pool = newPool(2);
+		try {
+			PooledConnection outer = pool.acquire();
+			PooledConnection inner = pool.acquire();
+			// The same thread is given the same connection again
+			assertSame(outer, inner);
+			assertEquals(1, pool.getActiveCount());
+			pool.release(inner);
+			assertEquals(1, pool.getActiveCount());
+			// Another thread is given a different connection
+			PooledConnection other = CompletableFuture.supplyAsync(() -> acquireAndRelease(pool)).get(5,
+					TimeUnit.SECONDS);
+			assertNotSame(outer, other);
+			pool.release(outer);
+			assertEquals(0, pool.getActiveCount());
+			assertEquals(2, pool.getIdleCount());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_Release_Wakes() throws Exception {
+		SqlConnectionPool pool = newPool(1);
+		try {
+			PooledConnection held = pool.acquire();
+			CompletableFuture<PooledConnection> waiting = CompletableFuture.supplyAsync(() -> acquireAndRelease(pool));
+			Thread.sleep(200);
+			// The other thread must wait for the only connection
+			assertFalse(waiting.isDone());
+			pool.release(held);
+			assertSame(held, waiting.get(5, TimeUnit.SECONDS));
+			assertEquals(0, pool.getActiveCount());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_Timeout() throws Exception {
+		SqlConnectionPool pool = new SqlConnectionPool(() -> DriverManager.getConnection("jdbc:h2:mem:"), 0, 1, 100,
+				0, 16);
+		try {
+			PooledConnection held = pool.acquire();
+			try {
+				CompletableFuture.supplyAsync(() -> acquireAndRelease(pool)).get(5, TimeUnit.SECONDS);
+				fail("Expected timeout waiting for connection");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause().getCause() instanceof SQLTimeoutException);
+			}
+			assertEquals(1, pool.getTimeoutCount());
+			pool.release(held);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_DetachAttach() throws Exception {
+		SqlConnectionPool pool = newPool(2);
+		try {
+			PooledConnection cursor = pool.acquire();
+			pool.detach(cursor);
+			// This thread no longer holds the detached connection
+			PooledConnection other = pool.acquire();
+			assertNotSame(cursor, other);
+			pool.release(other);
+			// Attached on another thread, as for a cursor handed over
+			PooledConnection nested = CompletableFuture.supplyAsync(() -> {
+				assertTrue(pool.attach(cursor));
+				PooledConnection c = acquireAndRelease(pool);
+				pool.detach(cursor);
+				return c;
+			}).get(5, TimeUnit.SECONDS);
+			assertSame(cursor, nested);
+			assertEquals(1, pool.getActiveCount());
+			pool.release(cursor);
+			assertEquals(0, pool.getActiveCount());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_CursorBreak() throws Exception {
+		SqlDatabase db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		try {
+			SqlTable<Item> table = SqlTestTables.items(db);
+			try (SqlCursor<Item> cursor = table.select().cursor()) {
+				assertNotNull(cursor.next());
+			}
+			assertEquals(0, db.getConnectionPool().getActiveCount());
+			// Another thread must still be able to use the database
+			long count = CompletableFuture.supplyAsync(() -> table.select().count()).get(5, TimeUnit.SECONDS);
+			assertEquals(3, count);
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_ForEach_Exhausted() throws Exception {
+		SqlDatabase db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		try {
+			SqlTable<Item> table = SqlTestTables.items(db);
+			int n = 0;
+			for (Item item : table.select()) {
+				assertNotNull(item);
+				// Nested operations are given the iterator's connection
+				assertEquals(3, table.select().count());
+				n++;
+			}
+			assertEquals(3, n);
+			assertEquals(0, db.getConnectionPool().getActiveCount());
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_DetachedSelf() throws Exception {
+		SqlConnectionPool pool = new SqlConnectionPool(() -> DriverManager.getConnection("jdbc:h2:mem:"), 0, 1,
+				SqlConnectionPool.DEFAULT_ACQUIRE_TIMEOUT, 0, 16);
+		try {
+			PooledConnection cursor = pool.acquire();
+			pool.detach(cursor);
+			long start = System.currentTimeMillis();
+			try {
+				pool.acquire();
+				fail("Expected acquire to fail whilst this thread's cursor holds the only connection");
+			} catch (SQLException e) {
+				assertFalse(e instanceof SQLTimeoutException);
+			}
+			// Fails without waiting for the timeout
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			assertEquals(0, pool.getTimeoutCount());
+			pool.release(cursor);
+			acquireAndRelease(pool);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_EvictIdle() throws Exception {
+		SqlConnectionPool pool = new SqlConnectionPool(() -> DriverManager.getConnection("jdbc:h2:mem:"), 1, 3, 5000,
+				100, 16);
+		try {
+			PooledConnection first = pool.acquire();
+			PooledConnection second = CompletableFuture.supplyAsync(() -> {
+				try {
+					return pool.acquire();
+				} catch (SQLException e) {
+					throw new RuntimeException("SQL Exception", e);
+				}
+			}).get(5, TimeUnit.SECONDS);
+			assertEquals(2, pool.getSize());
+			pool.release(first);
+			pool.release(second);
+			// The pool shrinks back to its minimum without being used again
+			long start = System.currentTimeMillis();
+			while (pool.getSize() > 1 && System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(50);
+			}
+			assertEquals(1, pool.getSize());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_SingleConnection_Closed() throws Exception {
+		Connection connection = DriverManager.getConnection("jdbc:h2:mem:");
+		SqlDatabase db = new SqlDatabase(connection);
+		SqlTable<Item> table = SqlTestTables.items(db);
+		connection.close();
+		// Ensure the connection is validated when next taken
+		Thread.sleep(1100);
+		for (int i = 0; i != 2; ++i) {
+			try {
+				table.select().count();
+				fail("Expected failure on closed connection");
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof SQLException);
+				assertEquals("Connection is no longer valid", e.getCause().getMessage());
+			}
+		}
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	private static SqlConnectionPool newPool(int size) throws SQLException {
+		return new SqlConnectionPool(() -> DriverManager.getConnection("jdbc:h2:mem:"), 0, size, 5000, 0, 16);
+	}
+
+	private static PooledConnection acquireAndRelease(SqlConnectionPool pool) {
+		try {
+			PooledConnection connection = pool.acquire();
+			pool.release(connection);
+			return connection;
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+	}
+}
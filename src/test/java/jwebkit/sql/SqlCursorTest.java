@@ -0,0 +1,127 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for reading the results of a query through a cursor, which holds a
+ * connection until it is closed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlCursorTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test
+	public void test_Exhausted() {
+		SqlCursor<Item> cursor = table.select().cursor(1);
+		int n = 0;
+		while (cursor.hasNext()) {
+			assertNotNull(cursor.next());
+			n++;
+		}
+		assertEquals(3, n);
+		// Closed automatically once the final row is reached
+		assertTrue(cursor.isClosed());
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+		try {
+			cursor.next();
+			fail("Expected exhausted cursor to have no more rows");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void test_CloseEarly() {
+		SqlCursor<Item> cursor = table.select().cursor();
+		try (SqlCursor<Item> c = cursor) {
+			assertNotNull(c.next());
+			assertEquals(1, db.getConnectionPool().getActiveCount());
+		}
+		assertTrue(cursor.isClosed());
+		assertFalse(cursor.hasNext());
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+		// Closing again has no effect
+		cursor.close();
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	@Test
+	public void test_Parts() {
+		for (int i = 4; i <= 10; ++i) {
+			table.insert(SqlTestTables.item(i, "item" + i));
+		}
+		List<SqlValue> ids = new ArrayList<>();
+		for (int i = 1; i <= 10; ++i) {
+			ids.add(SqlValue.Int(i));
+		}
+		// The IN clause is divided between several statements, which the
+		// cursor executes in turn.
+		db.setMaxParameters(3);
+		int n = 0;
+		try (SqlCursor<Item> cursor = table.select().whereIn(table.getColumn("id"), ids).cursor(2)) {
+			while (cursor.hasNext()) {
+				cursor.next();
+				n++;
+			}
+		}
+		assertEquals(10, n);
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	@Test
+	public void test_Failure() {
+		for (int i = 4; i <= 10; ++i) {
+			table.insert(SqlTestTables.item(i, "item" + i));
+		}
+		List<SqlValue> ids = new ArrayList<>();
+		for (int i = 1; i <= 10; ++i) {
+			ids.add(SqlValue.Int(i));
+		}
+		db.setMaxParameters(3);
+		SqlCursor<Item> cursor = table.select().whereIn(table.getColumn("id"), ids).cursor();
+		assertNotNull(cursor.next());
+		// The next part of the query fails, since its table has gone
+		try {
+			db.update("DROP TABLE items;", new ArrayList<>());
+		} catch (SQLException e) {
+			throw new RuntimeException("SQL Exception", e);
+		}
+		try {
+			while (cursor.hasNext()) {
+				cursor.next();
+			}
+			fail("Expected cursor to fail");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+		// The connection is released on failure
+		assertTrue(cursor.isClosed());
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+}
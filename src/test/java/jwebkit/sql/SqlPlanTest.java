@@ -0,0 +1,103 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for executing compiled query plans with different values.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlPlanTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test
+	public void test_Parameters() {
+		SqlPlan<Item> byName = table.select().whereEqual("name", new SqlValue.Text("one")).prepare();
+		assertEquals(1, byName.getParameterCount());
+		assertEquals(SqlValue.Int(2), byName.first(new SqlValue.Text("two")).get(0));
+		assertNull(byName.first(new SqlValue.Text("four")));
+		// The original values are only used when asked for
+		try (SqlCursor<Item> cursor = byName.execute()) {
+			assertEquals(SqlValue.Int(1), cursor.next().get(0));
+		}
+		try {
+			byName.first();
+			fail("Expected missing parameter to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void test_LimitOffset() {
+		SqlTable.Column id = table.getColumn("id");
+		SqlPlan<Item> page = table.select().orderBy(id).limit(2).prepare();
+		// The limit and offset are parameters
+		assertEquals(2, page.getParameterCount());
+		assertEquals(ids(1, 2), keys(page.collect(new ArrayList<>(), SqlValue.Int(2), SqlValue.Int(0))));
+		assertEquals(ids(3), keys(page.collect(new ArrayList<>(), SqlValue.Int(2), SqlValue.Int(2))));
+		assertEquals(ids(2), keys(page.collect(new ArrayList<>(), SqlValue.Int(1), SqlValue.Int(1))));
+		try {
+			page.first(new SqlValue.Text("1"), SqlValue.Int(0));
+			fail("Expected parameter of wrong type to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void test_Keyset() {
+		SqlTable.Column id = table.getColumn("id");
+		SqlPlan<Item> next = table.select().orderBy(id).after(SqlTestTables.item(0, "")).limit(1).prepare();
+		// The key of the "after" row, then the limit and offset
+		assertEquals(3, next.getParameterCount());
+		List<Item> rows = new ArrayList<>();
+		SqlValue after = SqlValue.Int(0);
+		Item item;
+		while ((item = next.first(after, SqlValue.Int(1), SqlValue.Int(0))) != null) {
+			rows.add(item);
+			after = item.get(0);
+		}
+		assertEquals(ids(1, 2, 3), keys(rows));
+	}
+
+	private static List<SqlValue> ids(int... ids) {
+		ArrayList<SqlValue> values = new ArrayList<>();
+		for (int id : ids) {
+			values.add(SqlValue.Int(id));
+		}
+		return values;
+	}
+
+	private static List<SqlValue> keys(List<Item> items) {
+		ArrayList<SqlValue> values = new ArrayList<>();
+		for (Item item : items) {
+			values.add(item.get(0));
+		}
+		return values;
+	}
+}
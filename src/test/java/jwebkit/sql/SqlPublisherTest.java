@@ -0,0 +1,126 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for publishing the results of a query to subscribers, as they request
+ * them.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlPublisherTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test(timeout = 10000)
+	public void test_Backpressure() throws Exception {
+		Recorder recorder = new Recorder();
+		table.select().orderBy(table.getColumn("id")).publisher(0).subscribe(recorder);
+		Flow.Subscription subscription = recorder.subscribed.get(5, TimeUnit.SECONDS);
+		subscription.request(1);
+		awaitSize(recorder.rows, 1);
+		// Nothing more is delivered until requested
+		Thread.sleep(200);
+		assertEquals(1, recorder.rows.size());
+		assertFalse(recorder.done.isDone());
+		subscription.request(5);
+		recorder.done.get(5, TimeUnit.SECONDS);
+		assertEquals(3, recorder.rows.size());
+		assertEquals(SqlValue.Int(3), recorder.rows.get(2).get(0));
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	@Test(timeout = 10000)
+	public void test_Cancel() throws Exception {
+		Recorder recorder = new Recorder();
+		table.select().publisher(0).subscribe(recorder);
+		Flow.Subscription subscription = recorder.subscribed.get(5, TimeUnit.SECONDS);
+		subscription.request(1);
+		awaitSize(recorder.rows, 1);
+		// The cursor holds the only connection until cancelled
+		assertEquals(1, db.getConnectionPool().getActiveCount());
+		subscription.cancel();
+		while (db.getConnectionPool().getActiveCount() != 0) {
+			Thread.sleep(10);
+		}
+		assertFalse(recorder.done.isDone());
+		assertEquals(3, table.select().count());
+	}
+
+	@Test(timeout = 10000)
+	public void test_InvalidRequest() throws Exception {
+		Recorder recorder = new Recorder();
+		table.select().publisher(0).subscribe(recorder);
+		recorder.subscribed.get(5, TimeUnit.SECONDS).request(0);
+		try {
+			recorder.done.get(5, TimeUnit.SECONDS);
+			fail("Expected non-positive request to be reported");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	private static void awaitSize(List<?> list, int size) throws InterruptedException {
+		while (list.size() < size) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Records the rows delivered to a subscriber, leaving requests to the
+	 * test.
+	 */
+	private static final class Recorder implements Flow.Subscriber<Item> {
+		private final CompletableFuture<Flow.Subscription> subscribed = new CompletableFuture<>();
+		private final List<Item> rows = new CopyOnWriteArrayList<>();
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscribed.complete(subscription);
+		}
+
+		@Override
+		public void onNext(Item item) {
+			rows.add(item);
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			done.completeExceptionally(e);
+		}
+
+		@Override
+		public void onComplete() {
+			done.complete(null);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for executing queries, particularly those which hold a connection
+ * whilst their results are consumed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlQueryTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+	private SqlTable<Item> copy;
+
+	@Before
+	public void setup() throws SQLException {
+		// A single connection, as for the default database
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+		copy = new SqlTable<>(db, "copy", Item.class,
+				new SqlTable.Column("id", SqlType.INT, true),
+				new SqlTable.Column("name", SqlType.VARCHAR(64)));
+		copy.create();
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test(timeout = 10000)
+	public void test_Stream_NestedWrite() {
+		table.select().stream().forEach(r -> copy.upsert(r));
+		assertEquals(3, copy.select().count());
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	@Test(timeout = 10000)
+	public void test_Stream_NestedRead() {
+		long n = table.select().stream().mapToLong(r -> table.select().count()).sum();
+		assertEquals(9, n);
+	}
+
+	@Test(timeout = 10000)
+	public void test_Stream_Close() {
+		try (Stream<Item> stream = table.select().stream()) {
+			assertTrue(stream.findFirst().isPresent());
+		}
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+		assertEquals(3, table.select().count());
+	}
+
+	@Test(timeout = 10000)
+	public void test_Publisher_NestedWrite() throws Exception {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		table.select().publisher(0).subscribe(new Flow.Subscriber<Item>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(Item item) {
+				copy.upsert(item);
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				done.completeExceptionally(e);
+			}
+
+			@Override
+			public void onComplete() {
+				done.complete(null);
+			}
+		});
+		done.get(5, TimeUnit.SECONDS);
+		assertEquals(3, copy.select().count());
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	@Test(timeout = 10000)
+	public void test_ParallelStream() throws SQLException {
+		SqlDatabase pooled = new SqlDatabase(new SqlConnectionPool(
+				() -> DriverManager.getConnection("jdbc:h2:mem:parallel;DB_CLOSE_DELAY=-1"), 1, 4, 5000, 0, 16));
+		try {
+			SqlTable<Item> items = SqlTestTables.items(pooled);
+			long n = items.select().parallelStream().mapToLong(r -> items.select().count()).sum();
+			assertEquals(9, n);
+			assertEquals(0, pooled.getConnectionPool().getActiveCount());
+		} finally {
+			pooled.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_ParallelStream_Rows() throws SQLException {
+		SqlDatabase pooled = new SqlDatabase(new SqlConnectionPool(
+				() -> DriverManager.getConnection("jdbc:h2:mem:parallelRows;DB_CLOSE_DELAY=-1"), 1, 4, 5000, 0, 16));
+		try {
+			SqlTable<Item> items = SqlTestTables.items(pooled);
+			ArrayList<Item> rows = new ArrayList<>();
+			for (int i = 4; i <= 5000; ++i) {
+				rows.add(SqlTestTables.item(i, "item" + i));
+			}
+			items.insertAll(rows);
+			// Enough rows to be split between threads, each of which must be
+			// seen exactly once.
+			long[] ids = items.select().parallelStream().mapToLong(r -> ((SqlValue.Int) r.get(0)).asLong()).sorted()
+					.toArray();
+			assertEquals(5000, ids.length);
+			for (int i = 0; i != ids.length; ++i) {
+				assertEquals(i + 1, ids[i]);
+			}
+			assertEquals(0, pooled.getConnectionPool().getActiveCount());
+		} finally {
+			pooled.close();
+		}
+	}
+
+	@Test
+	public void test_Stream_Ordered() {
+		List<SqlValue> ids = new ArrayList<>();
+		table.select().orderByDesc(table.getColumn("id")).stream().forEachOrdered(r -> ids.add(r.get(0)));
+		assertEquals(Arrays.asList(SqlValue.Int(3), SqlValue.Int(2), SqlValue.Int(1)), ids);
+		assertEquals(0, db.getConnectionPool().getActiveCount());
+	}
+
+	@Test
+	public void test_Aggregates_SplitIn() {
+		for (int i = 4; i <= 10; ++i) {
+			table.insert(SqlTestTables.item(i, "item" + i));
+		}
+		List<SqlValue> ids = new ArrayList<>();
+		for (int i = 1; i <= 10; ++i) {
+			ids.add(SqlValue.Int(i));
+		}
+		// Force the IN clause to be divided into several parts
+		db.setMaxParameters(3);
+		SqlTable.Column id = table.getColumn("id");
+		SqlTable.Column name = table.getColumn("name");
+		SqlQuery<Item> query = table.select().whereIn(id, ids);
+		assertEquals(10, query.collect(new ArrayList<>()).size());
+		assertEquals(10, query.count());
+		assertEquals(55, query.sum(id));
+		assertEquals(5.5, query.avg(id), 0);
+		assertEquals(SqlValue.Int(1), query.min(id));
+		assertEquals(SqlValue.Int(10), query.max(id));
+		assertEquals(new SqlValue.Text("item10"), query.min(name));
+		assertEquals(new SqlValue.Text("two"), query.max(name));
+		assertTrue(query.exists());
+		try {
+			query.groupBy(name).count();
+			fail("Expected grouped query to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
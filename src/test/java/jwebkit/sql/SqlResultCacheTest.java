@@ -0,0 +1,112 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for the caching of query results.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlResultCacheTest {
+	public static class Named extends AbstractSqlRow {
+		public Named(SqlValue... values) {
+			super(values);
+		}
+	}
+
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		db.setResultCache(new SqlResultCache(1 << 20, 0));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test
+	public void test_Hit() {
+		List<Item> first = table.select().collectCached();
+		List<Item> second = table.select().collectCached();
+		assertSame(first, second);
+		assertEquals(3, second.size());
+		assertEquals(1, db.getResultCache().getHitCount());
+	}
+
+	@Test
+	public void test_Projections_H2() {
+		checkProjections(table);
+	}
+
+	@Test
+	public void test_Projections_SQLite() throws SQLException {
+		SqlDatabase sqlite = new SqlDatabase(DriverManager.getConnection("jdbc:sqlite::memory:"));
+		try {
+			sqlite.setResultCache(new SqlResultCache(1 << 20, 0));
+			checkProjections(SqlTestTables.items(sqlite));
+		} finally {
+			sqlite.close();
+		}
+	}
+
+	@Test
+	public void test_InvalidateOnInsert() {
+		assertEquals(3, table.select().collectCached().size());
+		table.insert(SqlTestTables.item(4, "four"));
+		assertEquals(4, table.select().collectCached().size());
+	}
+
+	@Test
+	public void test_InvalidateOnUpdate() {
+		table.select().whereEqual("id", SqlValue.Int(1)).collectCached();
+		table.update().set("name", new SqlValue.Text("uno")).whereEqual("id", SqlValue.Int(1)).apply();
+		Item item = table.select().whereEqual("id", SqlValue.Int(1)).collectCached().get(0);
+		assertEquals("uno", ((SqlValue.Text) item.get(1)).asString());
+	}
+
+	@Test
+	public void test_InvalidateOnDelete() {
+		assertEquals(3, table.select().collectCached().size());
+		table.delete().whereEqual("id", SqlValue.Int(2)).apply();
+		assertEquals(2, table.select().collectCached().size());
+	}
+
+	/**
+	 * Projections of the same columns into different row types produce the
+	 * same SQL, but must not share cached results.
+	 *
+	 * @param table
+	 */
+	private static void checkProjections(SqlTable<Item> table) {
+		List<SqlTuple> tuples = table.select("id", "name").collectCached();
+		List<Named> named = table.select(Named.class, table.getColumn("id"), table.getColumn("name"))
+				.collectCached();
+		assertEquals(3, tuples.size());
+		assertEquals(3, named.size());
+		for (Object row : tuples) {
+			assertTrue(row instanceof SqlTuple);
+		}
+		for (Object row : named) {
+			assertTrue(row instanceof Named);
+		}
+		// Both are now cached
+		assertSame(named, table.select(Named.class, table.getColumn("id"), table.getColumn("name")).collectCached());
+		assertSame(tuples, table.select("id", "name").collectCached());
+	}
+}
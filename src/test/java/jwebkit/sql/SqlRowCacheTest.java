@@ -0,0 +1,96 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for the caching of rows by primary key.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlRowCacheTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+		table.setRowCache(new SqlRowCache<>(100, 0));
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test
+	public void test_Hit() {
+		assertSame(table.get(SqlValue.Int(1)), table.get(SqlValue.Int(1)));
+		assertEquals(1, table.getRowCache().getHitCount());
+		assertEquals(1, table.getRowCache().getMissCount());
+	}
+
+	@Test
+	public void test_InvalidateOnUpdate() {
+		assertEquals("one", name(table.get(SqlValue.Int(1))));
+		table.update(SqlTestTables.item(1, "uno"));
+		assertEquals("uno", name(table.get(SqlValue.Int(1))));
+	}
+
+	@Test
+	public void test_InvalidateOnUpsert() {
+		assertEquals("one", name(table.get(SqlValue.Int(1))));
+		table.upsert(SqlTestTables.item(1, "uno"));
+		assertEquals("uno", name(table.get(SqlValue.Int(1))));
+	}
+
+	@Test
+	public void test_InvalidateOnQueryUpdate() {
+		assertEquals("two", name(table.get(SqlValue.Int(2))));
+		table.update().set("name", new SqlValue.Text("dos")).whereEqual("id", SqlValue.Int(2)).apply();
+		assertEquals("dos", name(table.get(SqlValue.Int(2))));
+	}
+
+	@Test
+	public void test_InvalidateOnDelete() {
+		assertNotNull(table.get(SqlValue.Int(3)));
+		table.delete(table.get(SqlValue.Int(3)));
+		assertNull(table.get(SqlValue.Int(3)));
+	}
+
+	@Test
+	public void test_InvalidateOnBatch() {
+		assertEquals("one", name(table.get(SqlValue.Int(1))));
+		table.updateAll(Arrays.asList(SqlTestTables.item(1, "uno"), SqlTestTables.item(2, "dos")));
+		assertEquals("uno", name(table.get(SqlValue.Int(1))));
+		assertEquals("dos", name(table.get(SqlValue.Int(2))));
+	}
+
+	@Test
+	public void test_InvalidateOnRollback() {
+		assertEquals("one", name(table.get(SqlValue.Int(1))));
+		db.inTransaction(tx -> {
+			table.update(SqlTestTables.item(1, "uno"));
+			// Visible within the transaction
+			assertEquals("uno", name(table.get(SqlValue.Int(1))));
+			tx.setRollbackOnly();
+			return null;
+		});
+		assertEquals("one", name(table.get(SqlValue.Int(1))));
+	}
+
+	private static String name(Item item) {
+		return ((SqlValue.Text) item.get(1)).asString();
+	}
+}
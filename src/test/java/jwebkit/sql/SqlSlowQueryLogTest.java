@@ -0,0 +1,90 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for recording slow statements, along with their plans.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlSlowQueryLogTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test(timeout = 10000)
+	public void test_Record() throws InterruptedException {
+		// Every statement takes at least zero milliseconds
+		SqlSlowQueryLog log = new SqlSlowQueryLog(0, 10, false, true);
+		db.setSlowQueryLog(log);
+		assertNotNull(table.get(SqlValue.Int(2)));
+		List<SqlSlowQueryLog.Entry> entries = log.getEntries();
+		assertEquals(1, entries.size());
+		SqlSlowQueryLog.Entry entry = entries.get(0);
+		assertTrue(entry.getFingerprint().startsWith("SELECT "));
+		assertEquals(Arrays.asList(SqlValue.Int(2)), entry.getParameters());
+		assertEquals(1, entry.getRowCount());
+		assertNull(entry.getFailure());
+		// The plan is obtained in the background
+		while (entry.getPlan() == null) {
+			Thread.sleep(10);
+		}
+		assertFalse(entry.getPlan().startsWith("EXPLAIN"));
+	}
+
+	@Test
+	public void test_Redact() {
+		SqlSlowQueryLog log = new SqlSlowQueryLog(0, 10, true, false);
+		db.setSlowQueryLog(log);
+		table.get(SqlValue.Int(2));
+		SqlSlowQueryLog.Entry entry = log.getEntries().get(0);
+		assertNull(entry.getParameters());
+		assertNull(entry.getPlan());
+	}
+
+	@Test
+	public void test_Capacity() {
+		SqlSlowQueryLog log = new SqlSlowQueryLog(0, 2, false, false);
+		db.setSlowQueryLog(log);
+		for (int i = 1; i <= 3; ++i) {
+			table.get(SqlValue.Int(i));
+		}
+		assertEquals(3, log.getCount());
+		// Only the most recent are kept, most recent first
+		List<SqlSlowQueryLog.Entry> entries = log.getEntries();
+		assertEquals(2, entries.size());
+		assertEquals(Arrays.asList(SqlValue.Int(3)), entries.get(0).getParameters());
+		assertEquals(Arrays.asList(SqlValue.Int(2)), entries.get(1).getParameters());
+	}
+
+	@Test
+	public void test_Threshold() {
+		SqlSlowQueryLog log = new SqlSlowQueryLog(60000, 10, false, false);
+		db.setSlowQueryLog(log);
+		table.get(SqlValue.Int(2));
+		assertEquals(0, log.getCount());
+		assertTrue(log.getEntries().isEmpty());
+	}
+}
@@ -0,0 +1,41 @@
+package jwebkit.sql;
+
+/**
+ * The table of items on which these tests operate, and the rows it is
+ * initially filled with.
+ *
+ * @author David J. Pearce
+ *
+ */
+final class SqlTestTables {
+	public static class Item extends AbstractSqlRow {
+		public Item(SqlValue... values) {
+			super(values);
+		}
+	}
+
+	private SqlTestTables() {
+	}
+
+	/**
+	 * Create the items table in a given database, holding the rows 1 "one", 2
+	 * "two" and 3 "three".
+	 *
+	 * @param db
+	 * @return
+	 */
+	static SqlTable<Item> items(SqlDatabase db) {
+		SqlTable<Item> table = new SqlTable<>(db, "items", Item.class,
+				new SqlTable.Column("id", SqlType.INT, true),
+				new SqlTable.Column("name", SqlType.VARCHAR(64)));
+		table.create();
+		table.insert(item(1, "one"));
+		table.insert(item(2, "two"));
+		table.insert(item(3, "three"));
+		return table;
+	}
+
+	static Item item(int id, String name) {
+		return new Item(SqlValue.Int(id), new SqlValue.Text(name));
+	}
+}
@@ -0,0 +1,90 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for running work in transactions, and for applying units of work.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlTransactionTest {
+
+	@Test
+	public void test_CommitFailure() throws SQLException {
+		Connection connection = DriverManager.getConnection("jdbc:h2:mem:");
+		boolean[] failCommit = new boolean[1];
+		// Fails on commit when asked, but otherwise behaves as normal
+		Connection failing = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					if (failCommit[0] && method.getName().equals("commit")) {
+						throw new SQLException("Commit failed");
+					}
+					try {
+						return method.invoke(connection, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		SqlDatabase db = new SqlDatabase(failing);
+		try {
+			SqlTable<Item> table = SqlTestTables.items(db);
+			failCommit[0] = true;
+			try {
+				db.inTransaction(tx -> {
+					table.insert(SqlTestTables.item(4, "four"));
+					return null;
+				});
+				fail("Expected commit to fail");
+			} catch (RuntimeException e) {
+				assertEquals("Commit failed", e.getCause().getMessage());
+			}
+			failCommit[0] = false;
+			// The insert must have been rolled back, not committed when
+			// auto-commit was restored.
+			assertEquals(3, table.select().count());
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void test_UnitOfWork_Delete() throws SQLException {
+		SqlDatabase db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		try {
+			SqlTable<Item> table = SqlTestTables.items(db);
+			List<String> deletes = new ArrayList<>();
+			db.setQueryListener(new SqlQueryListener() {
+				@Override
+				public void started(String sql, int parameters) {
+					if (sql.startsWith("DELETE")) {
+						deletes.add(sql);
+					}
+				}
+			});
+			SqlUnitOfWork work = new SqlUnitOfWork(db);
+			for (Item item : table.select()) {
+				work.delete(table, item);
+			}
+			work.flush();
+			assertEquals(0, table.select().count());
+			// Sent as a single batch
+			assertEquals(Arrays.asList("DELETE FROM items WHERE id=?;"), deletes);
+		} finally {
+			db.close();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for inserting or replacing rows, both with the statements provided by
+ * each dialect and without.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlUpsertTest {
+
+	@Test
+	public void test_Upsert_H2() throws SQLException {
+		SqlDatabase db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		try {
+			assertEquals(SqlDialect.H2, db.getDialect());
+			checkUpsert(SqlTestTables.items(db));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void test_Upsert_SQLite() throws SQLException {
+		SqlDatabase db = new SqlDatabase(DriverManager.getConnection("jdbc:sqlite::memory:"));
+		try {
+			assertEquals(SqlDialect.SQLITE, db.getDialect());
+			checkUpsert(SqlTestTables.items(db));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void test_Upsert_Generic() throws SQLException {
+		SqlDatabase db = new SqlDatabase(generic(DriverManager.getConnection("jdbc:h2:mem:")));
+		try {
+			assertEquals(SqlDialect.GENERIC, db.getDialect());
+			checkUpsert(SqlTestTables.items(db));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void test_UpsertAll_Generic() throws SQLException {
+		SqlDatabase db = new SqlDatabase(generic(DriverManager.getConnection("jdbc:h2:mem:")));
+		try {
+			SqlTable<Item> table = SqlTestTables.items(db);
+			List<int[]> counts = table.upsertAll(Arrays.asList(SqlTestTables.item(1, "uno"),
+					SqlTestTables.item(4, "four"), SqlTestTables.item(5, "five")).iterator(), 2);
+			// One count per row, grouped by batch
+			assertEquals(2, counts.size());
+			assertArrayEquals(new int[] { 1, 1 }, counts.get(0));
+			assertArrayEquals(new int[] { 1 }, counts.get(1));
+			assertEquals(5, table.select().count());
+			assertEquals("uno", name(table.get(SqlValue.Int(1))));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void test_UpsertAll_Generic_Rollback() throws SQLException {
+		SqlDatabase db = new SqlDatabase(generic(DriverManager.getConnection("jdbc:h2:mem:")));
+		try {
+			SqlTable<Item> table = SqlTestTables.items(db);
+			// Fails part way through its first batch, which is rolled back
+			char[] tooLong = new char[100];
+			Arrays.fill(tooLong, 'x');
+			try {
+				table.upsertAll(Arrays.asList(SqlTestTables.item(1, "uno"), SqlTestTables.item(4, "four"),
+						SqlTestTables.item(5, new String(tooLong))).iterator(), 10);
+				fail("Expected upsert of invalid row to fail");
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof SQLException);
+			}
+			assertEquals(3, table.select().count());
+			assertEquals("one", name(table.get(SqlValue.Int(1))));
+		} finally {
+			db.close();
+		}
+	}
+
+	private static void checkUpsert(SqlTable<Item> table) {
+		table.upsert(SqlTestTables.item(2, "deux"));
+		table.upsert(SqlTestTables.item(4, "four"));
+		assertEquals(4, table.select().count());
+		assertEquals("deux", name(table.get(SqlValue.Int(2))));
+		assertEquals("four", name(table.get(SqlValue.Int(4))));
+	}
+
+	private static String name(Item item) {
+		return ((SqlValue.Text) item.get(1)).asString();
+	}
+
+	/**
+	 * Wrap a given connection so that its database is not recognised, and
+	 * hence only standard SQL is used.
+	 *
+	 * @param connection
+	 * @return
+	 */
+	private static Connection generic(Connection connection) {
+		ClassLoader loader = SqlUpsertTest.class.getClassLoader();
+		return (Connection) Proxy.newProxyInstance(loader, new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					Object result = invoke(connection, method, args);
+					if (method.getName().equals("getMetaData")) {
+						DatabaseMetaData metadata = (DatabaseMetaData) result;
+						return Proxy.newProxyInstance(loader, new Class<?>[] { DatabaseMetaData.class },
+								(p, m, a) -> m.getName().equals("getDatabaseProductName") ? "Generic"
+										: invoke(metadata, m, a));
+					}
+					return result;
+				});
+	}
+
+	private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package jwebkit.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jwebkit.sql.SqlConnectionPool.PooledConnection;
+import jwebkit.sql.SqlTestTables.Item;
+
+/**
+ * Tests for buffering inserts to be written from a background thread.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SqlWriteBehindTest {
+	private SqlDatabase db;
+	private SqlTable<Item> table;
+
+	@Before
+	public void setup() throws SQLException {
+		db = new SqlDatabase(DriverManager.getConnection("jdbc:h2:mem:"));
+		table = SqlTestTables.items(db);
+	}
+
+	@After
+	public void teardown() {
+		db.close();
+	}
+
+	@Test(timeout = 10000)
+	public void test_FlushOnClose() {
+		// A long delay, so that nothing is written until closed
+		SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 100, 50, 60000, SqlWriteBehind.Overflow.BLOCK);
+		for (int i = 0; i != 10; ++i) {
+			assertTrue(buffer.insert(SqlTestTables.item(100 + i, "row" + i)));
+		}
+		buffer.close();
+		assertEquals(0, buffer.getQueuedCount());
+		assertEquals(10, buffer.getWrittenCount());
+		assertEquals(13, table.select().count());
+		try {
+			buffer.insert(SqlTestTables.item(200, "late"));
+			fail("Expected insert after close to fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_Flush() {
+		try (SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 100, 50, 60000,
+				SqlWriteBehind.Overflow.BLOCK)) {
+			table.setWriteBehind(buffer);
+			for (int i = 0; i != 10; ++i) {
+				table.insert(SqlTestTables.item(100 + i, "row" + i));
+			}
+			buffer.flush();
+			assertEquals(10, buffer.getWrittenCount());
+			assertEquals(13, table.select().count());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_Flush_Closing() throws Exception {
+		SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 1000, 50, 60000, SqlWriteBehind.Overflow.BLOCK);
+		for (int i = 0; i != 500; ++i) {
+			buffer.insert(SqlTestTables.item(100 + i, "row" + i));
+		}
+		Thread closer = new Thread(buffer::close);
+		closer.start();
+		// Flushing whilst the flusher is finishing must wait for every row
+		// queued beforehand.
+		buffer.flush();
+		assertEquals(500, buffer.getWrittenCount());
+		closer.join();
+		assertEquals(503, table.select().count());
+	}
+
+	@Test(timeout = 10000)
+	public void test_Flush_Failure() {
+		try (SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 100, 50, 0, SqlWriteBehind.Overflow.BLOCK)) {
+			// Duplicate key
+			buffer.insert(SqlTestTables.item(1, "one"));
+			try {
+				buffer.flush();
+				fail("Expected flush to report failure");
+			} catch (RuntimeException e) {
+				// expected
+			}
+			assertEquals(1, buffer.getFailedCount());
+			// The failure is only reported once
+			buffer.flush();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_Backpressure_Block() throws Exception {
+		SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 4, 2, 0, SqlWriteBehind.Overflow.BLOCK);
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i != 20; ++i) {
+				buffer.insert(SqlTestTables.item(100 + i, "row" + i));
+			}
+		});
+		// Holding the only connection prevents the flusher from writing
+		PooledConnection connection = db.acquire();
+		try {
+			producer.start();
+			producer.join(500);
+			// The producer must be held up by the full queue
+			assertTrue(producer.isAlive());
+			assertTrue(buffer.getQueuedCount() <= 4);
+			assertEquals(0, buffer.getWrittenCount());
+		} finally {
+			db.release(connection);
+		}
+		producer.join();
+		buffer.close();
+		assertEquals(20, buffer.getWrittenCount());
+		assertEquals(0, buffer.getDroppedCount());
+		assertEquals(23, table.select().count());
+	}
+
+	@Test(timeout = 10000)
+	public void test_Backpressure_Drop() throws Exception {
+		SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 4, 2, 0, SqlWriteBehind.Overflow.DROP);
+		int accepted = 0;
+		PooledConnection connection = db.acquire();
+		try {
+			for (int i = 0; i != 20; ++i) {
+				if (buffer.insert(SqlTestTables.item(100 + i, "row" + i))) {
+					accepted++;
+				}
+			}
+		} finally {
+			db.release(connection);
+		}
+		buffer.close();
+		assertTrue(accepted < 20);
+		assertEquals(20 - accepted, buffer.getDroppedCount());
+		assertEquals(accepted, buffer.getWrittenCount());
+		assertEquals(3 + accepted, table.select().count());
+	}
+
+	@Test(timeout = 10000)
+	public void test_Backpressure_CallerRuns() {
+		SqlWriteBehind<Item> buffer = new SqlWriteBehind<>(table, 1, 1, 60000, SqlWriteBehind.Overflow.CALLER_RUNS);
+		for (int i = 0; i != 10; ++i) {
+			assertTrue(buffer.insert(SqlTestTables.item(100 + i, "row" + i)));
+		}
+		buffer.close();
+		assertEquals(0, buffer.getDroppedCount());
+		assertEquals(13, table.select().count());
+	}
+}